@@ -118,7 +118,7 @@ class AssignmentTrackerImpl implements AssignmentTracker {
     Assignment assignment = assignments.get(type);
     if (assignment == null) {
       // get all the right nodes directly from the root node
-      List<Node> nodes = rootNode.findChildren(type);
+      List<Node> nodes = rootNode.findChildrenView(type);
       assignment = new Assignment(nodes);
       assignments.put(type, assignment);
     }
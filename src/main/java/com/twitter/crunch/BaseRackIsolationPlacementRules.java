@@ -16,8 +16,10 @@
 package com.twitter.crunch;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.google.common.base.Predicate;
@@ -29,26 +31,50 @@ import com.google.common.base.Predicates;
  * the end type.
  */
 public abstract class BaseRackIsolationPlacementRules implements PlacementRules, RackBasedTypes {
+  private final MultiInputHash hashFunction = new JenkinsHash();
+  private final Mode mode;
+
+  protected BaseRackIsolationPlacementRules() {
+    this(Mode.FIRSTN);
+  }
+
   /**
-   * In case we get less than full return values from the placement algorithm, we retry by changing
-   * the input to the placement algorithm. This should converge pretty rapidly under normal
-   * circumstances. However, if it fails to converge after a certain number of tries, we throw a
-   * MappingException to indicate the failure.
+   * Creates the rules with the given selection mode. The INDEP mode needs a
+   * {@link CRUSHPlacementAlgorithm} to select with.
    */
-  private static final int CONVERGENCE_LIMIT = 20;
+  protected BaseRackIsolationPlacementRules(Mode mode) {
+    this.mode = mode;
+  }
 
-  private final MultiInputHash hashFunction = new JenkinsHash();
+  public Mode getMode() {
+    return mode;
+  }
 
   /**
-   * Enforce rack isolation. The caller will either get the expected number of selected nodes as a
-   * result, or an exception will be thrown.
+   * Enforce rack isolation. In the FIRSTN mode, the caller will either get the expected number of
+   * selected nodes as a result, or an exception will be thrown. In the INDEP mode, the caller gets
+   * the expected number of positions, each in a rack of its own, with null for the positions that
+   * could not be filled.
    *
    * @return the number of selected nodes with the rack isolation placement rules enforced. The size
    * will match the input count
-   * @throws MappingException if it is unable to find the mapping that satisfies all constraints
+   * @throws MappingException if it is unable to find the mapping that satisfies all constraints in
+   * the FIRSTN mode within the convergence limit of the {@link PlacementTunables} of a
+   * {@link CRUSHPlacementAlgorithm}, or the default limit for other placement algorithms
    */
   public List<Node> select(Node topNode, long data, int n, PlacementAlgorithm pa)
       throws MappingException {
+    if (mode == Mode.INDEP) {
+      if (!(pa instanceof CRUSHPlacementAlgorithm)) {
+        throw new IllegalArgumentException("the indep mode needs a CRUSHPlacementAlgorithm");
+      }
+      return selectIndep(topNode, data, n, (CRUSHPlacementAlgorithm)pa);
+    }
+    // in case we get less than full return values from the placement algorithm, we retry by
+    // changing the input to the placement algorithm, up to the convergence limit
+    PlacementTunables tunables = getTunables(pa);
+    int convergenceLimit = tunables == null ?
+        PlacementTunables.DEFAULT_CONVERGENCE_LIMIT : tunables.getConvergenceLimit();
     List<Node> nodes = new ArrayList<Node>(n);
     Set<Node> selectedRacks = new HashSet<Node>();
     long input = data;
@@ -60,7 +86,10 @@ public abstract class BaseRackIsolationPlacementRules implements PlacementRules,
       if (count > 0) { // still not all picked
         input = hash(input); // hash the input to create a different data value
         tries++;
-        if (tries >= CONVERGENCE_LIMIT) {
+        if (tries >= convergenceLimit) {
+          if (tunables != null) {
+            tunables.getCounters().countConvergenceLimitHit();
+          }
           throw new MappingException(String.format("could not fulfill all selection after %d tries",
               tries));
         }
@@ -82,6 +111,64 @@ public abstract class BaseRackIsolationPlacementRules implements PlacementRules,
     }
   }
 
+  /**
+   * Picks a rack per position in the indep mode, and one end node in each rack. The racks are
+   * picked as if all had end nodes, so that the positions settle the way they did before any rack
+   * failed. A position whose rack has no end node for the data, e.g. because its disks have all
+   * failed, then becomes a hole, and every hole is refilled on its own round sequence, with the
+   * racks of the other positions taken, so that only the positions of the failed racks move. A hole
+   * that is still open at the loopback limit goes on along its sequence, up to the convergence
+   * limit, and is left as null after that.
+   */
+  private List<Node> selectIndep(Node topNode, final long data, int n,
+      final CRUSHPlacementAlgorithm pa) {
+    // the end node of every rack tried, or null if it has none
+    final Map<Node,Node> endNodes = new HashMap<Node,Node>();
+    Predicate<Node> hasEndNode = new Predicate<Node>() {
+      public boolean apply(Node rack) {
+        if (!endNodes.containsKey(rack)) {
+          Node[] endNode = new Node[1];
+          pa.selectIndep(rack, data, 1, getEndNodeType(), Predicates.<Node>alwaysTrue(), endNode);
+          endNodes.put(rack, endNode[0]);
+        }
+        return endNodes.get(rack) != null;
+      }
+    };
+    Node[] racks = new Node[n];
+    int filled = pa.selectIndep(topNode, data, n, RACK, Predicates.<Node>alwaysTrue(), racks);
+    for (int position = 0; position < n; position++) {
+      if (racks[position] != null && !hasEndNode.apply(racks[position])) {
+        racks[position] = null;
+        filled--;
+      }
+    }
+    int convergenceLimit = pa.getTunables().getConvergenceLimit();
+    long triesPerPass = pa.getTunables().getLoopbackLimit() + 1L;
+    for (int pass = 0; filled < n && pass < convergenceLimit; pass++) {
+      int firstTry = (int)Math.min(pass*triesPerPass, Integer.MAX_VALUE);
+      filled = pa.continueIndep(topNode, data, n, RACK, hasEndNode, racks, firstTry);
+    }
+
+    if (filled < n) {
+      pa.getTunables().getCounters().countConvergenceLimitHit();
+    }
+
+    List<Node> nodes = new ArrayList<Node>(n);
+    for (Node rack: racks) {
+      nodes.add(rack == null ? null : endNodes.get(rack));
+    }
+    return nodes;
+  }
+
+  /**
+   * Returns the tunables of the CRUSH placement algorithm, or null for the others, which have none
+   * to count the convergence limit hits in.
+   */
+  private static PlacementTunables getTunables(PlacementAlgorithm pa) {
+    return pa instanceof CRUSHPlacementAlgorithm ?
+        ((CRUSHPlacementAlgorithm)pa).getTunables() : null;
+  }
+
   /**
    * Use the predicate to reject already selected racks.
    */
@@ -100,8 +187,6 @@ public abstract class BaseRackIsolationPlacementRules implements PlacementRules,
    * Rejects the replica if they share the rack.
    */
   public boolean acceptReplica(Node primary, Node replica) {
-    Node primaryRack = primary.findParent(RACK);
-    Node replicaRack = replica.findParent(RACK);
-    return primaryRack.getId() != replicaRack.getId();
+    return !Node.sameAncestor(primary, replica, RACK);
   }
 }
@@ -0,0 +1,30 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+/**
+ * A {@link MultiInputHash} that can also hash one input and round against many values at once.
+ * Callers check for it and fall back to the scalar method, so that the hash functions that only
+ * implement {@link MultiInputHash} keep working.
+ */
+public interface BatchMultiInputHash extends MultiInputHash {
+  /**
+   * Hashes the same a and c values against every value in b, so that result[i] is equal to
+   * hash(a, b[i], c). This lets callers that score many children with the same input and round do
+   * so in one tight loop. The result array must be at least as long as b.
+   */
+  void hash(long a, long[] b, long c, long[] result);
+}
@@ -16,11 +16,8 @@
 package com.twitter.crunch;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,21 +28,40 @@ import com.google.common.base.Predicates;
 /**
  * The transcription of the CRUSH placement algorithm from the Weil paper. This is a fairly simple
  * adaptation, but a couple of important changes have been made to work with the crunch mapping.
+ * <br/>
+ * How long the selection retries is set by its {@link PlacementTunables}, which also count how
+ * often the limits are hit.
+ * <br/>
+ * Without the round offset and the assignment tracker, an instance keeps no state between
+ * selections, and can be used by multiple threads at once; see {@link PlacementEngine}.
  */
 public class CRUSHPlacementAlgorithm implements PlacementAlgorithm {
-  /**
-   * In case the select() method fails to select after looping back to the origin of selection after
-   * so many tries, we stop the search. This constant denotes the maximum number of retries after
-   * looping back to the origin. It is expected that in most cases the selection will either succeed
-   * with a small number of tries, or it will never succeed. So a reasonably large number to
-   * distinguish these two cases should be sufficient.
-   */
-  private static final int MAX_LOOPBACK_COUNT = 50;
   private static final Logger logger = LoggerFactory.getLogger(CRUSHPlacementAlgorithm.class);
+  // the most loopback rounds past the replicas whose descents are kept; the descents of later
+  // rounds are selected again, which only costs time
+  private static final int MAX_KEPT_LOOPBACKS = PlacementTunables.DEFAULT_LOOPBACK_LIMIT;
+  // the scratch arrays of the selections on this thread
+  private static final ThreadLocal<Scratch> scratchBuffer = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  // marks an open position of the indep selection; never selected, as it is in no tree
+  private static final Node UNDECIDED = new Node();
 
   private final boolean keepOffset;
-  private final Map<Long,Integer> roundOffset;
+  // the last round of every input, unboxed as it is looked up on every selection
+  private final LongIntMap roundOffset;
   private final AssignmentTracker assignmentTracker;
+  // the retry limits, read once here as they are checked on every retry
+  private final PlacementTunables tunables;
+  private final int loopbackLimit;
+  private final int localRetryLimit;
+  private final int retryBudget;
+  private final int keptLoopbacks;
+  private final PlacementCounters counters;
 
   /**
    * Creates the crush placement object.
@@ -69,11 +85,50 @@ public class CRUSHPlacementAlgorithm implements PlacementAlgorithm {
     this(false, assignmentTracker);
   }
 
+  /**
+   * Creates the crush placement algorithm object with the given retry limits.
+   */
+  public CRUSHPlacementAlgorithm(PlacementTunables tunables) {
+    this(false, null, tunables);
+  }
+
   // TODO consider better constructors for these options
   public CRUSHPlacementAlgorithm(boolean keepOffset, AssignmentTracker assignmentTracker) {
+    this(keepOffset, assignmentTracker, new PlacementTunables());
+  }
+
+  public CRUSHPlacementAlgorithm(boolean keepOffset, AssignmentTracker assignmentTracker,
+      PlacementTunables tunables) {
     this.keepOffset = keepOffset;
-    roundOffset = keepOffset ? new HashMap<Long,Integer>() : null;
-    this.assignmentTracker = assignmentTracker;
+    roundOffset = keepOffset ? new LongIntMap() : null;
+    // a tracker that does not track leaves the selection stateless
+    this.assignmentTracker = assignmentTracker instanceof NoOpAssignmentTracker ?
+        null : assignmentTracker;
+    this.tunables = tunables;
+    loopbackLimit = tunables.getLoopbackLimit();
+    localRetryLimit = tunables.getLocalRetryLimit();
+    retryBudget = tunables.getRetryBudget();
+    keptLoopbacks = Math.min(loopbackLimit, MAX_KEPT_LOOPBACKS);
+    counters = tunables.getCounters();
+  }
+
+  /**
+   * Forgets the round offsets kept for the inputs, so that the next selections start from the first
+   * round as with a new instance. The memory of the offsets is kept for reuse, so one instance can
+   * be recycled for successive runs, such as one per data center. The assignment tracker is left as
+   * it is.
+   */
+  public void resetOffsets() {
+    if (keepOffset) {
+      roundOffset.clear();
+    }
+  }
+
+  /**
+   * Returns the retry limits of this algorithm, and with them the counters of the limits hit.
+   */
+  public PlacementTunables getTunables() {
+    return tunables;
   }
 
   /**
@@ -90,26 +145,124 @@ public class CRUSHPlacementAlgorithm implements PlacementAlgorithm {
 
   public List<Node> select(Node parent, long input, int count, int type,
       Predicate<Node> nodePredicate) {
+    Node[] selected = new Node[count];
+    int selectedCount = select(parent, input, count, type, nodePredicate, selected);
+    List<Node> nodes = new ArrayList<Node>(selectedCount);
+    for (int i = 0; i < selectedCount; i++) {
+      nodes.add(selected[i]);
+    }
+    return nodes;
+  }
+
+  /**
+   * Selects (count) nodes of the desired type under the parent, and writes them to the output
+   * array, which must hold at least (count) elements. As with the list-based methods, fewer nodes
+   * than requested may be selected, and callers should check the returned number.
+   * <br/>
+   * A replica is given up once the selection has looped back to the origin as many times as the
+   * loopback limit of the {@link PlacementTunables} allows, and the whole call stops once it has
+   * failed as many selections as the retry budget allows.
+   * <br/>
+   * The scratch state of the selection is kept per thread, so this method does not allocate unless
+   * the round offset is kept, the assignments are tracked, trace logging is enabled, or it is
+   * called from within another selection on the same thread (the selectors of the nodes may still
+   * allocate; those of the JenkinsHash-based selection types do not).
+   *
+   * @return the number of selected nodes
+   */
+  public int select(Node parent, long input, int count, int type, Predicate<Node> nodePredicate,
+      Node[] selected) {
+    if (selected.length < count) {
+      throw new IllegalArgumentException("the output holds " + selected.length + " nodes but " +
+          count + " were requested");
+    }
+    checkChildrenCount(parent, count, type);
+    return select(parent, input, count, type, nodePredicate, selected, 0);
+  }
+
+  /**
+   * Selects (count) nodes of the desired type under the parent for each of the inputs, like
+   * {@link #select(Node, long, int, int, Predicate, Node[])}. The output is a matrix with a row of
+   * (count) nodes per input: the nodes for input i are written from selected[i*count] on, and their
+   * number to selectedCounts[i].
+   * <br/>
+   * The argument checks are done once for the whole batch. Without the round offset and the
+   * assignment tracker, the inputs walk down the tree together: every pass takes one selection
+   * step for each input that is not done yet, so the upper levels of the tree are shared by the
+   * whole batch while they are hot in the cache. The result is the same as selecting the inputs
+   * one by one. With either of them, the result depends on the order of the selections, and the
+   * inputs are selected one by one in order.
+   */
+  public void select(Node parent, long[] inputs, int count, int type, Node[] selected,
+      int[] selectedCounts) {
+    if (selected.length < inputs.length*count || selectedCounts.length < inputs.length) {
+      throw new IllegalArgumentException("the output is too small for " + inputs.length +
+          " inputs of " + count + " nodes");
+    }
+    checkChildrenCount(parent, count, type);
+    if (keepOffset || assignmentTracker != null) {
+      Predicate<Node> predicate = Predicates.alwaysTrue();
+      for (int i = 0; i < inputs.length; i++) {
+        selectedCounts[i] = select(parent, inputs[i], count, type, predicate, selected, i*count);
+      }
+    } else {
+      selectInPasses(parent, inputs, count, type, selected, selectedCounts);
+    }
+  }
+
+  private static void checkChildrenCount(Node parent, int count, int type) {
     int childCount = parent.getChildrenCount(type);
     if (childCount < count) {
       throw new IllegalArgumentException(count + " nodes of type " + type +
           " were requested but the tree has only " + childCount + " nodes!");
     }
+  }
 
-    List<Node> selected = new ArrayList<Node>(count);
+  /**
+   * Selects the nodes for the input, and writes them to the output array from the base on. The
+   * scratch arrays of the thread are released even if a selector or the predicate throws; a select
+   * nested in another on the same thread, e.g. from a predicate, takes scratch arrays of its own.
+   */
+  private int select(Node parent, long input, int count, int type, Predicate<Node> nodePredicate,
+      Node[] selected, int base) {
+    Scratch scratch = scratchBuffer.get();
+    if (scratch.busy) {
+      scratch = new Scratch();
+    }
+    scratch.busy = true;
+    try {
+      return select(parent, input, count, type, nodePredicate, selected, base, scratch);
+    } finally {
+      scratch.release();
+    }
+  }
+
+  private int select(Node parent, long input, int count, int type, Predicate<Node> nodePredicate,
+      Node[] selected, int base, Scratch scratch) {
+    // the arguments of the trace calls would be boxed even with trace off
+    final boolean trace = logger.isTraceEnabled();
+    int selectedCount = 0;
+    // nodes rejected by the predicate, reset whenever we loop back to the origin
+    Node[] rejected = scratch.rejected;
+    int rejectedCount = 0;
     // use the index stored in the map
-    Integer offset;
+    int offset = 0;
     if (keepOffset) {
-      offset = roundOffset.get(input);
-      if (offset == null) {
-        offset = 0;
-        roundOffset.put(input, offset);
-      }
-    } else {
-      offset = 0;
+      offset = roundOffset.get(input, 0);
     }
 
     int rPrime = 0;
+    // number of failed selections of this call, held against the retry budget
+    int retries = 0;
+    boolean exhausted = false;
+    // the descents from the origin by round, two nodes (the last node selected on and the node of
+    // the type) per round; replica r + 1 starts on the rounds replica r retried with, and takes the
+    // same descents again. They are kept up to the loopback limit past the last replica
+    Node[] descents = scratch.descents;
+    if (descents.length < 2*(count + keptLoopbacks + 1)) {
+      descents = new Node[2*(count + keptLoopbacks + 1)];
+      scratch.descents = descents;
+    }
     for (int r = 1; r <= count; r++) {
       int failure = 0;
       // number of times we had to loop back to the origin
@@ -120,52 +273,118 @@ public class CRUSHPlacementAlgorithm implements PlacementAlgorithm {
       do {
         retryOrigin = false; // initialize at the outset
         Node in = parent;
-        Set<Node> rejected = new HashSet<Node>();
+        rejectedCount = 0;
+        // number of times we reselected on the same parent since the origin
+        int localRetries = 0;
+        // the round of the descent from the origin this node is on, or 0 if it is not on one
+        int descentRound = 0;
         boolean retryNode;
         do {
           retryNode = false; // initialize at the outset
           rPrime = r + offset + failure;
-          logger.trace("{}.select({}, {})", new Object[] {in, input, rPrime});
-          out = in.select(input, rPrime);
+          if (in == parent) {
+            descentRound = r + failure;
+          }
+          if (in == parent && 2*descentRound + 1 < descents.length &&
+              descents[2*descentRound] != null) {
+            if (trace) {
+              logger.trace("taking the descent of round {} from {} again for data {}",
+                  new Object[] {rPrime, in, input});
+            }
+            in = descents[2*descentRound];
+            out = descents[2*descentRound + 1];
+          } else {
+            if (trace) {
+              logger.trace("{}.select({}, {})", new Object[] {in, input, rPrime});
+            }
+            out = in.select(input, rPrime);
+          }
           if (out.getType() != type) {
-            logger.trace("selected output {} for data {} didn't match the type {}: walking down " +
-                "the hierarchy...", new Object[] {out, input, type});
+            if (trace) {
+              logger.trace("selected output {} for data {} didn't match the type {}: walking " +
+                  "down the hierarchy...", new Object[] {out, input, type});
+            }
             in = out; // walk down the hierarchy
             retryNode = true; // stay within the node and walk down the tree
           } else { // type matches
+            if (descentRound > r && r < count && 2*descentRound + 1 < descents.length) {
+              // a retry round, which the next replicas start on
+              descents[2*descentRound] = in;
+              descents[2*descentRound + 1] = out;
+              scratch.descentsUsed = Math.max(scratch.descentsUsed, 2*descentRound + 2);
+            }
             boolean predicateRejected = !nodePredicate.apply(out);
-            if (selected.contains(out) || predicateRejected) {
+            if (contains(selected, base, selectedCount, out) || predicateRejected) {
               if (predicateRejected) {
-                logger.trace("{} was rejected by the node predicate for data {}: rejecting and " +
-                    "increasing rPrime", out, input);
-                rejected.add(out);
-              } else { // already selected
-                logger.trace("{} was already selected for data {}: rejecting and increasing rPrime",
-                    out, input);
+                if (trace) {
+                  logger.trace("{} was rejected by the node predicate for data {}: rejecting " +
+                      "and increasing rPrime", out, input);
+                }
+                if (rejectedCount == rejected.length) {
+                  rejected = Arrays.copyOf(rejected, rejectedCount*2);
+                  scratch.rejected = rejected;
+                }
+                rejected[rejectedCount++] = out;
+                scratch.rejectedUsed = Math.max(scratch.rejectedUsed, rejectedCount);
+              } else if (trace) { // already selected
+                logger.trace("{} was already selected for data {}: rejecting and increasing " +
+                    "rPrime", out, input);
               }
 
               // we need to see if we have selected all possible nodes from this parent, in which
               // case we should loop back to the origin and start over
-              if (allChildNodesEliminated(in, selected, rejected)) {
+              boolean loopback = allChildNodesEliminated(in, selected, base, selectedCount,
+                  rejected, rejectedCount);
+              if (trace && loopback) {
                 logger.trace("all child nodes of {} have been eliminated", in);
-                if (loopbackCount == MAX_LOOPBACK_COUNT) {
+              }
+              if (!loopback && localRetries == localRetryLimit) {
+                if (trace) {
+                  logger.trace("retried {} times on {}", localRetries, in);
+                }
+                counters.countLocalRetryLimitHit();
+                loopback = true;
+              }
+              if (loopback) {
+                if (loopbackCount == loopbackLimit) {
                   // we looped back the maximum times we specified; we give up search, and exit
+                  counters.countLoopbackLimitHits(1);
                   escape = true;
                   break;
                 }
                 loopbackCount++;
-                logger.trace("looping back to the original parent node ({})", parent);
+                if (trace) {
+                  logger.trace("looping back to the original parent node ({})", parent);
+                }
                 retryOrigin = true;
               } else {
+                localRetries++;
                 retryNode = true; // go back and reselect on the same parent
+                descentRound = 0;
               }
               failure++;
+              if (++retries > retryBudget) {
+                // the budget of the whole call is spent; give up search, and exit
+                exhausted = true;
+                retryOrigin = false;
+                escape = true;
+                break;
+              }
             } else if (nodeIsOut(out)) {
-              logger.trace("{} is marked as out (failed or over the maximum assignment) for data " +
-                  "{}! looping back to the original parent node", out, input);
+              if (trace) {
+                logger.trace("{} is marked as out (failed or over the maximum assignment) for " +
+                    "data {}! looping back to the original parent node", out, input);
+              }
               failure++;
-              if (loopbackCount == MAX_LOOPBACK_COUNT) {
+              if (++retries > retryBudget) {
+                // the budget of the whole call is spent; give up search, and exit
+                exhausted = true;
+                escape = true;
+                break;
+              }
+              if (loopbackCount == loopbackLimit) {
                 // we looped back the maximum times we specified; we give up search, and exit
+                counters.countLoopbackLimitHits(1);
                 escape = true;
                 break;
               }
@@ -181,15 +400,27 @@ public class CRUSHPlacementAlgorithm implements PlacementAlgorithm {
         } while (retryNode);
       } while (retryOrigin);
 
+      if (exhausted) {
+        counters.countRetryBudgetHit();
+        if (logger.isDebugEnabled()) {
+          logger.debug("the retry budget of data {} under parent {} is spent; a smaller data set " +
+              "than is requested will be returned", input, parent);
+        }
+        break;
+      }
       if (escape) {
         // cannot find a node under this parent; return a smaller set than was intended
-        logger.debug("we could not select a node for data {} under parent {}; a smaller data set " +
-            "than is requested will be returned", input, parent);
+        if (logger.isDebugEnabled()) {
+          logger.debug("we could not select a node for data {} under parent {}; a smaller data " +
+              "set than is requested will be returned", input, parent);
+        }
         continue;
       }
 
-      logger.trace("{} was selected for data {}", out, input);
-      selected.add(out);
+      if (trace) {
+        logger.trace("{} was selected for data {}", out, input);
+      }
+      selected[base + selectedCount++] = out;
       // track the assignment
       if (assignmentTracker != null) {
         assignmentTracker.trackAssignment(out);
@@ -198,9 +429,264 @@ public class CRUSHPlacementAlgorithm implements PlacementAlgorithm {
     if (keepOffset) {
       roundOffset.put(input, rPrime);
     }
-    return selected;
+    return selectedCount;
+  }
+
+  /**
+   * Selects the nodes for a batch of inputs without a round offset and an assignment tracker. The
+   * state of the CRUSH loop of {@link #select(Node, long, int, int, Predicate, Node[], int)} is
+   * kept per input, and every pass over the batch takes one step of the loop for each input: a
+   * selection on the current node, and the walk down, the retry, the loopback to the origin or the
+   * move to the next replica that follows it.
+   */
+  private void selectInPasses(Node parent, long[] inputs, int count, int type, Node[] selected,
+      int[] selectedCounts) {
+    final int size = inputs.length;
+    Node[] in = new Node[size];
+    int[] round = new int[size];
+    int[] failure = new int[size];
+    int[] loopbackCount = new int[size];
+    int[] localRetries = new int[size];
+    int[] retries = new int[size];
+    int[] active = new int[size];
+    for (int i = 0; i < size; i++) {
+      in[i] = parent;
+      round[i] = 1;
+      selectedCounts[i] = 0;
+      active[i] = i;
+    }
+    int activeCount = count > 0 ? size : 0;
+    while (activeCount > 0) {
+      int stillActive = 0;
+      for (int a = 0; a < activeCount; a++) {
+        final int i = active[a];
+        final int base = i*count;
+        Node out = in[i].select(inputs[i], round[i] + failure[i]);
+        if (out.getType() != type) {
+          in[i] = out; // walk down the hierarchy
+          active[stillActive++] = i;
+          continue;
+        }
+        boolean done = false;
+        boolean exhausted = false;
+        if (contains(selected, base, selectedCounts[i], out)) {
+          // there are no predicate rejections in a batch
+          boolean loopback = allChildNodesEliminated(in[i], selected, base, selectedCounts[i],
+              null, 0);
+          if (!loopback && localRetries[i] == localRetryLimit) {
+            counters.countLocalRetryLimitHit();
+            loopback = true;
+          }
+          if (!loopback) {
+            localRetries[i]++;
+          } else if (loopbackCount[i] == loopbackLimit) {
+            counters.countLoopbackLimitHits(1);
+            done = true; // give up on this replica
+          } else {
+            loopbackCount[i]++;
+            localRetries[i] = 0;
+            in[i] = parent;
+          }
+          failure[i]++;
+          exhausted = !done && ++retries[i] > retryBudget;
+        } else if (nodeIsOut(out)) {
+          failure[i]++;
+          if (++retries[i] > retryBudget) {
+            exhausted = true;
+          } else if (loopbackCount[i] == loopbackLimit) {
+            counters.countLoopbackLimitHits(1);
+            done = true; // give up on this replica
+          } else {
+            loopbackCount[i]++;
+            localRetries[i] = 0;
+            in[i] = parent;
+          }
+        } else {
+          selected[base + selectedCounts[i]++] = out;
+          done = true;
+        }
+        if (exhausted) {
+          // the budget of the input is spent; skip its remaining replicas
+          counters.countRetryBudgetHit();
+          round[i] = count;
+          done = true;
+        }
+        if (done) {
+          // move on to the next replica
+          round[i]++;
+          failure[i] = 0;
+          loopbackCount[i] = 0;
+          localRetries[i] = 0;
+          in[i] = parent;
+          if (round[i] > count) {
+            if (selectedCounts[i] < count && logger.isDebugEnabled()) {
+              logger.debug("we could not select all nodes for data {} under parent {}; a smaller " +
+                  "data set than is requested will be returned", inputs[i], parent);
+            }
+            continue;
+          }
+        }
+        active[stillActive++] = i;
+      }
+      activeCount = stillActive;
+    }
   }
 
+  /**
+   * Returns (count) nodes of the desired type in the "indep" mode of CRUSH. See
+   * {@link #selectIndep(Node, long, int, int, Predicate, Node[])}.
+   *
+   * @return a list of (count) positions, with null for the positions that could not be filled
+   */
+  public List<Node> selectIndep(Node parent, long input, int count, int type) {
+    Node[] selected = new Node[count];
+    selectIndep(parent, input, count, type, Predicates.<Node>alwaysTrue(), selected);
+    return Arrays.asList(selected);
+  }
+
+  /**
+   * Selects (count) nodes of the desired type under the parent in the "indep" mode of CRUSH, which
+   * keeps the positions stable, as erasure-coded placements need: every position r is retried on
+   * its own round sequence (r, r + count, r + 2*count, ...), from the origin, when its node is
+   * failed, rejected by the predicate or taken by another position. A node that fails therefore
+   * only changes its own position, while in {@link #select(Node, long, int, int)} it shifts the
+   * later ones.
+   * <br/>
+   * The nodes are written to the output array by position. A position that cannot be filled after
+   * as many tries as the firstn mode loops back, or before the retry budget is spent, is left as a
+   * hole, i.e. null. There are no local retries and no round offset in this mode.
+   *
+   * @return the number of filled positions
+   */
+  public int selectIndep(Node parent, long input, int count, int type,
+      Predicate<Node> nodePredicate, Node[] selected) {
+    if (selected.length < count) {
+      throw new IllegalArgumentException("the output holds " + selected.length + " nodes but " +
+          count + " were requested");
+    }
+    checkChildrenCount(parent, count, type);
+    Arrays.fill(selected, 0, count, UNDECIDED);
+    return selectIndep(parent, input, count, type, nodePredicate, selected, count, 0);
+  }
+
+  /**
+   * Refills the holes of a selection of {@link #selectIndep(Node, long, int, int, Predicate,
+   * Node[])}, i.e. the null positions of the output: every hole is retried on its own round
+   * sequence from the given try on, up to the loopback limit, and the filled positions are kept and
+   * count as taken. Starting from the try after the last one of an earlier call goes on along the
+   * sequences past the loopback limit.
+   *
+   * @return the number of filled positions
+   */
+  int continueIndep(Node parent, long input, int count, int type, Predicate<Node> nodePredicate,
+      Node[] selected, int firstTry) {
+    int left = 0;
+    for (int position = 0; position < count; position++) {
+      if (selected[position] == null) {
+        selected[position] = UNDECIDED;
+        left++;
+      }
+    }
+    return selectIndep(parent, input, count, type, nodePredicate, selected, left, firstTry);
+  }
+
+  /**
+   * Fills the (left) undecided positions of the output, with up to as many tries as the firstn
+   * mode loops back from the first try on.
+   */
+  private int selectIndep(Node parent, long input, int count, int type,
+      Predicate<Node> nodePredicate, Node[] selected, int left, int firstTry) {
+    // number of failed selections of this call, held against the retry budget
+    int retries = 0;
+    boolean exhausted = false;
+    int lastTry = (int)Math.min((long)firstTry + loopbackLimit, Integer.MAX_VALUE);
+    for (int tries = firstTry; left > 0 && tries <= lastTry && !exhausted; tries++) {
+      // one pass over the open positions per try, so that a retry does not move the others
+      for (int position = 0; position < count && !exhausted; position++) {
+        if (selected[position] != UNDECIDED) {
+          continue;
+        }
+        int round = position + 1 + tries*count;
+        Node in = parent;
+        Node out = in.select(input, round);
+        while (out.getType() != type) {
+          in = out; // walk down the hierarchy
+          out = in.select(input, round);
+        }
+        if (isTaken(selected, count, out) || !nodePredicate.apply(out) || nodeIsOut(out)) {
+          exhausted = ++retries > retryBudget;
+          continue; // try this position again on the next pass
+        }
+        selected[position] = out;
+        left--;
+        if (assignmentTracker != null) {
+          assignmentTracker.trackAssignment(out);
+        }
+      }
+    }
+    if (left > 0) {
+      if (exhausted) {
+        counters.countRetryBudgetHit();
+      } else {
+        counters.countLoopbackLimitHits(left);
+      }
+      for (int position = 0; position < count; position++) {
+        if (selected[position] == UNDECIDED) {
+          selected[position] = null;
+        }
+      }
+      if (logger.isDebugEnabled()) {
+        logger.debug("we could not fill {} positions for data {} under parent {}; they are left " +
+            "as holes", new Object[] {left, input, parent});
+      }
+    }
+    return count - left;
+  }
+
+  /**
+   * The scratch arrays of a selection, kept per thread so that the selection does not allocate.
+   */
+  private static final class Scratch {
+    // the nodes rejected by the predicate, grown as needed
+    Node[] rejected = new Node[8];
+    // the descents from the origin by round, grown as needed
+    Node[] descents = new Node[2*(4 + MAX_KEPT_LOOPBACKS)];
+    // the high-water marks of the arrays, to clear them in the end
+    int rejectedUsed;
+    int descentsUsed;
+    // whether a selection on this thread is using the arrays
+    boolean busy;
+
+    /**
+     * Drops the references to the nodes, so that the next selection starts clean, and frees the
+     * arrays.
+     */
+    void release() {
+      Arrays.fill(rejected, 0, rejectedUsed, null);
+      Arrays.fill(descents, 0, descentsUsed, null);
+      rejectedUsed = 0;
+      descentsUsed = 0;
+      busy = false;
+    }
+  }
+
+  private static boolean isTaken(Node[] positions, int count, Node node) {
+    for (int i = 0; i < count; i++) {
+      if (positions[i] != UNDECIDED && positions[i].equals(node)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean contains(Node[] nodes, int from, int length, Node node) {
+    for (int i = from; i < from + length; i++) {
+      if (nodes[i].equals(node)) {
+        return true;
+      }
+    }
+    return false;
+  }
 
   private boolean nodeIsOut(Node node) {
     if (node.isLeaf() && node.isFailed()) {
@@ -217,11 +703,15 @@ public class CRUSHPlacementAlgorithm implements PlacementAlgorithm {
    * that can be selected (i.e. not failed) are already selected. This is used to determine whether
    * this parent node should no longer be used in the selection.
    */
-  private boolean allChildNodesEliminated(Node parent, List<Node> selected, Set<Node> rejected) {
+  private boolean allChildNodesEliminated(Node parent, Node[] selected, int base,
+      int selectedCount, Node[] rejected, int rejectedCount) {
     List<Node> children = parent.getChildren();
     if (children != null) {
-      for (Node child: children) {
-        if (!nodeIsOut(child) && !selected.contains(child) && !rejected.contains(child)) {
+      // no iterator, to keep the selection allocation-free
+      for (int i = 0; i < children.size(); i++) {
+        Node child = children.get(i);
+        if (!nodeIsOut(child) && !contains(selected, base, selectedCount, child) &&
+            !contains(rejected, 0, rejectedCount, child)) {
           return false;
         }
       }
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
+/**
+ * The CRUSH placement algorithm running on a {@link CompactTopology}. It makes exactly the same
+ * selections as {@link CRUSHPlacementAlgorithm} with the same {@link PlacementTunables}, without
+ * the round offset and without assignment tracking, but walks the index arrays instead of the node
+ * objects. The limits hit are counted in the counters of the tunables, as there.
+ * <br/>
+ * It only reads the topology, so one instance can be used by multiple threads.
+ */
+public class CompactPlacementAlgorithm implements PlacementAlgorithm {
+  private static final Logger logger = LoggerFactory.getLogger(CompactPlacementAlgorithm.class);
+
+  private final CompactTopology topology;
+  // the retry limits, read once here as they are checked on every retry
+  private final PlacementTunables tunables;
+  private final int loopbackLimit;
+  private final int localRetryLimit;
+  private final int retryBudget;
+  private final PlacementCounters counters;
+
+  /**
+   * Creates the compact placement with the default retry limits.
+   */
+  public CompactPlacementAlgorithm(CompactTopology topology) {
+    this(topology, new PlacementTunables());
+  }
+
+  public CompactPlacementAlgorithm(CompactTopology topology, PlacementTunables tunables) {
+    this.topology = topology;
+    this.tunables = tunables;
+    loopbackLimit = tunables.getLoopbackLimit();
+    localRetryLimit = tunables.getLocalRetryLimit();
+    retryBudget = tunables.getRetryBudget();
+    counters = tunables.getCounters();
+  }
+
+  public CompactTopology getTopology() {
+    return topology;
+  }
+
+  /**
+   * Returns the retry limits of this algorithm, and with them the counters of the limits hit.
+   */
+  public PlacementTunables getTunables() {
+    return tunables;
+  }
+
+  public List<Node> select(Node parent, long input, int count, int type) {
+    return select(parent, input, count, type, Predicates.<Node>alwaysTrue());
+  }
+
+  public List<Node> select(Node parent, long input, int count, int type,
+      Predicate<Node> nodePredicate) {
+    int index = topology.indexOf(parent);
+    if (index < 0) {
+      throw new IllegalArgumentException(parent + " is not part of the compact topology!");
+    }
+    int[] selected = new int[count];
+    int selectedCount = select(index, input, count, type, nodePredicate, selected);
+    List<Node> nodes = new ArrayList<Node>(selectedCount);
+    for (int i = 0; i < selectedCount; i++) {
+      nodes.add(topology.getNode(selected[i]));
+    }
+    return nodes;
+  }
+
+  /**
+   * Selects (count) nodes of the desired type under the parent, and writes their indexes to the
+   * output array, which must hold at least (count) elements. As with the list-based methods, fewer
+   * nodes than requested may be selected, and callers should check the returned number. The retry
+   * limits are those of {@link CRUSHPlacementAlgorithm#select(Node, long, int, int, Predicate,
+   * Node[])}.
+   *
+   * @return the number of selected nodes
+   */
+  public int select(int parent, long input, int count, int type, Predicate<Node> nodePredicate,
+      int[] selected) {
+    int childCount = topology.getChildrenCount(parent, type);
+    if (childCount < count) {
+      throw new IllegalArgumentException(count + " nodes of type " + type +
+          " were requested but the tree has only " + childCount + " nodes!");
+    }
+
+    int selectedCount = 0;
+    // nodes rejected by the predicate, reset whenever we loop back to the origin
+    int[] rejected = new int[4];
+    int rejectedCount = 0;
+    // number of failed selections of this call, held against the retry budget
+    int retries = 0;
+    boolean exhausted = false;
+    for (int r = 1; r <= count; r++) {
+      int failure = 0;
+      // number of times we had to loop back to the origin
+      int loopbackCount = 0;
+      boolean escape = false;
+      boolean retryOrigin;
+      int out;
+      do {
+        retryOrigin = false; // initialize at the outset
+        int in = parent;
+        rejectedCount = 0;
+        // number of times we reselected on the same parent since the origin
+        int localRetries = 0;
+        boolean retryNode;
+        do {
+          retryNode = false; // initialize at the outset
+          int rPrime = r + failure;
+          out = topology.select(in, input, rPrime);
+          if (topology.getType(out) != type) {
+            in = out; // walk down the hierarchy
+            retryNode = true; // stay within the node and walk down the tree
+          } else { // type matches
+            boolean predicateRejected = !nodePredicate.apply(topology.getNode(out));
+            if (contains(selected, selectedCount, out) || predicateRejected) {
+              if (predicateRejected) {
+                if (rejectedCount == rejected.length) {
+                  rejected = Arrays.copyOf(rejected, rejectedCount*2);
+                }
+                rejected[rejectedCount++] = out;
+              }
+
+              // we need to see if we have selected all possible nodes from this parent, in which
+              // case we should loop back to the origin and start over
+              boolean loopback = allChildNodesEliminated(in, selected, selectedCount, rejected,
+                  rejectedCount);
+              if (!loopback && localRetries == localRetryLimit) {
+                counters.countLocalRetryLimitHit();
+                loopback = true;
+              }
+              if (loopback) {
+                if (loopbackCount == loopbackLimit) {
+                  // we looped back the maximum times we specified; we give up search, and exit
+                  counters.countLoopbackLimitHits(1);
+                  escape = true;
+                  break;
+                }
+                loopbackCount++;
+                retryOrigin = true;
+              } else {
+                localRetries++;
+                retryNode = true; // go back and reselect on the same parent
+              }
+              failure++;
+              if (++retries > retryBudget) {
+                // the budget of the whole call is spent; give up search, and exit
+                exhausted = true;
+                retryOrigin = false;
+                escape = true;
+                break;
+              }
+            } else if (nodeIsOut(out)) {
+              failure++;
+              if (++retries > retryBudget) {
+                // the budget of the whole call is spent; give up search, and exit
+                exhausted = true;
+                escape = true;
+                break;
+              }
+              if (loopbackCount == loopbackLimit) {
+                // we looped back the maximum times we specified; we give up search, and exit
+                counters.countLoopbackLimitHits(1);
+                escape = true;
+                break;
+              }
+              loopbackCount++;
+              // re-selection on the same parent is detrimental in case of node failure: loop back
+              // to the origin
+              retryOrigin = true;
+            } else {
+              // we got a successful selection
+              break;
+            }
+          }
+        } while (retryNode);
+      } while (retryOrigin);
+
+      if (exhausted) {
+        counters.countRetryBudgetHit();
+        logger.debug("the retry budget of data {} under parent {} is spent; a smaller data set " +
+            "than is requested will be returned", input, topology.getNode(parent));
+        break;
+      }
+      if (escape) {
+        // cannot find a node under this parent; return a smaller set than was intended
+        logger.debug("we could not select a node for data {} under parent {}; a smaller data set " +
+            "than is requested will be returned", input, topology.getNode(parent));
+        continue;
+      }
+      selected[selectedCount++] = out;
+    }
+    return selectedCount;
+  }
+
+  private boolean nodeIsOut(int node) {
+    return topology.isLeaf(node) && topology.isFailed(node);
+  }
+
+  private static boolean contains(int[] array, int length, int value) {
+    for (int i = 0; i < length; i++) {
+      if (array[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Examines the immediate child nodes of the given parent node, and sees if all of the children
+   * that can be selected (i.e. not failed) are already selected.
+   */
+  private boolean allChildNodesEliminated(int parent, int[] selected, int selectedCount,
+      int[] rejected, int rejectedCount) {
+    final int end = topology.getFirstChild(parent) + topology.getChildCount(parent);
+    for (int child = topology.getFirstChild(parent); child < end; child++) {
+      if (!nodeIsOut(child) && !contains(selected, selectedCount, child) &&
+          !contains(rejected, rejectedCount, child)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flattened, read-only copy of a crunched tree. The nodes are numbered in breadth-first order from
+ * the root (0), so the children of a node occupy a contiguous range of indexes, and the node
+ * properties are kept in parallel primitive arrays indexed by that number. Selection goes through
+ * the selectors of the crunched tree, which report the selected child by its position.
+ * <br/>
+ * This is a snapshot: changes to the tree (e.g. marking a node as failed) are not reflected, and a
+ * new compact topology needs to be built after them.
+ * <br/>
+ * The arrays improve the locality of the placement, not the heap use: the selectors are those of
+ * the tree, which reference its nodes, and the nodes themselves are kept to map the selected
+ * indexes back to nodes and the nodes passed in to indexes. A compact topology therefore keeps the
+ * whole crunched tree reachable, and takes memory on top of it.
+ */
+public class CompactTopology {
+  private final Node[] nodes;
+  private final int[] types;
+  private final long[] ids;
+  private final long[] weights;
+  private final int[] parents;
+  private final int[] firstChildren;
+  private final int[] childCounts;
+  private final boolean[] failed;
+  private final IndexedSelector[] selectors;
+  private final Map<Node,Integer> indexes;
+  // the distinct node types in ascending order, and for each of them the number of nodes of that
+  // type in the subtree of every node
+  private final int[] distinctTypes;
+  private final int[][] typeCounts;
+
+  /**
+   * Creates the compact topology from a crunched tree, starting from the given node.
+   *
+   * @throws IllegalArgumentException if a node with children has a selector that cannot select by
+   * index
+   */
+  public CompactTopology(Node root) {
+    final int size = countNodes(root);
+    nodes = new Node[size];
+    types = new int[size];
+    ids = new long[size];
+    weights = new long[size];
+    parents = new int[size];
+    firstChildren = new int[size];
+    childCounts = new int[size];
+    failed = new boolean[size];
+    selectors = new IndexedSelector[size];
+    indexes = new IdentityHashMap<Node,Integer>(size);
+
+    // breadth-first: the nodes array doubles as the queue
+    nodes[0] = root;
+    parents[0] = -1;
+    int next = 1;
+    for (int i = 0; i < size; i++) {
+      Node node = nodes[i];
+      indexes.put(node, i);
+      types[i] = node.getType();
+      ids[i] = node.getId();
+      weights[i] = node.getWeight();
+      firstChildren[i] = next;
+      if (node.isLeaf()) {
+        failed[i] = node.isFailed();
+        continue;
+      }
+      if (!(node.getSelector() instanceof IndexedSelector)) {
+        throw new IllegalArgumentException(node + " does not have a selector that can be used " +
+            "with the compact topology: " + node.getSelector());
+      }
+      selectors[i] = (IndexedSelector)node.getSelector();
+      List<Node> children = node.getChildren();
+      childCounts[i] = children.size();
+      for (Node child: children) {
+        parents[next] = i;
+        nodes[next++] = child;
+      }
+    }
+
+    distinctTypes = distinct(types);
+    typeCounts = new int[distinctTypes.length][];
+    for (int t = 0; t < distinctTypes.length; t++) {
+      int[] counts = new int[size];
+      // children come after their parents, so walking backwards completes them first
+      for (int i = size - 1; i >= 0; i--) {
+        if (types[i] == distinctTypes[t]) {
+          counts[i] = 1;
+        } else {
+          final int end = firstChildren[i] + childCounts[i];
+          for (int child = firstChildren[i]; child < end; child++) {
+            counts[i] += counts[child];
+          }
+        }
+      }
+      typeCounts[t] = counts;
+    }
+  }
+
+  private static int[] distinct(int[] values) {
+    int[] sorted = values.clone();
+    Arrays.sort(sorted);
+    int count = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (i == 0 || sorted[i] != sorted[i - 1]) {
+        sorted[count++] = sorted[i];
+      }
+    }
+    return Arrays.copyOf(sorted, count);
+  }
+
+  private static int countNodes(Node node) {
+    int count = 1;
+    if (!node.isLeaf()) {
+      for (Node child: node.getChildren()) {
+        count += countNodes(child);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of nodes.
+   */
+  public int size() {
+    return nodes.length;
+  }
+
+  /**
+   * Returns the index of the node, or -1 if the node is not part of this topology.
+   */
+  public int indexOf(Node node) {
+    Integer index = indexes.get(node);
+    return index == null ? -1 : index;
+  }
+
+  public Node getNode(int index) {
+    return nodes[index];
+  }
+
+  public int getType(int index) {
+    return types[index];
+  }
+
+  public long getId(int index) {
+    return ids[index];
+  }
+
+  public long getWeight(int index) {
+    return weights[index];
+  }
+
+  /**
+   * Returns the index of the parent, or -1 for the root.
+   */
+  public int getParent(int index) {
+    return parents[index];
+  }
+
+  /**
+   * Returns the index of the first child. The children occupy the indexes from the first child up to
+   * (but not including) the first child plus the child count.
+   */
+  public int getFirstChild(int index) {
+    return firstChildren[index];
+  }
+
+  public int getChildCount(int index) {
+    return childCounts[index];
+  }
+
+  public boolean isLeaf(int index) {
+    return childCounts[index] == 0;
+  }
+
+  public boolean isFailed(int index) {
+    return failed[index];
+  }
+
+  /**
+   * Selects one child of the node with its selector, and returns the index of the child.
+   */
+  public int select(int index, long input, long round) {
+    return firstChildren[index] + selectors[index].selectIndex(input, round);
+  }
+
+  /**
+   * Returns the number of nodes of the given type in the subtree of the node, counting the node
+   * itself, in the same way as {@link Node#getChildrenCount(int)}. The counts are computed when
+   * the topology is built.
+   */
+  public int getChildrenCount(int index, int type) {
+    int t = Arrays.binarySearch(distinctTypes, type);
+    return t < 0 ? 0 : typeCounts[t][index];
+  }
+}
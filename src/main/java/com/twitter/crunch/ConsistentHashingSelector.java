@@ -15,41 +15,54 @@
 
 package com.twitter.crunch;
 
-import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Simple implementation of selection based on consistent hashing.
+ * <br/>
+ * The ring is kept as a sorted array of tokens with a parallel array of their owners. Ring tokens
+ * are always derived from the node names with SHA-1. The hash that places the data on the ring can
+ * be swapped for a faster function; by default it is SHA-1 of the input and the round, which keeps
+ * the selections of earlier versions.
+ * <br/>
+ * Selection does not modify the selector, so it is safe to call from multiple threads as long as
+ * the hash function is.
  */
-class ConsistentHashingSelector implements Selector {
+class ConsistentHashingSelector implements IndexedSelector {
   public static final long DEFAULT_MAX_TOKENS_PER_NODE = 500;
+  // thread-safe, so it is shared by all the selectors in the SHA-1 mode
+  private static final MultiInputHash SHA1 = new MessageDigestHash("SHA-1");
 
-  private final MessageDigest md;
-  private final List<Long> tokenList;
-  private final Map<Long,Node> tokenMap;
+  private final MultiInputHash hashFunction;
+  private final long[] tokens;
+  private final Node[] owners;
+  // the positions of the owners among the children
+  private final int[] ownerIndexes;
 
   public ConsistentHashingSelector(Node node) {
+    this(node, SHA1);
+  }
+
+  /**
+   * Creates the selector that places the data on the ring with the given hash function. The hash
+   * function is called with the input and the round, and should return a 32-bit value to cover the
+   * ring.
+   */
+  public ConsistentHashingSelector(Node node, MultiInputHash hashFunction) {
     if (node.isLeaf()) {
       throw new IllegalArgumentException();
     }
-    try {
-      md = MessageDigest.getInstance("SHA-1");
-    } catch (NoSuchAlgorithmException ignore) {
-      throw new IllegalArgumentException(ignore);
-    }
+    this.hashFunction = hashFunction;
 
     final long maxTokensPerNode = DEFAULT_MAX_TOKENS_PER_NODE;
-//    long totalWeight = 0;
     long maxWeight = 0;
     List<Node> nodes = node.getChildren();
     for (Node n: nodes) {
-//      totalWeight += n.getWeight();
       maxWeight = Math.max(n.getWeight(), maxWeight);
     }
 
@@ -59,8 +72,10 @@ class ConsistentHashingSelector implements Selector {
     } catch (NoSuchAlgorithmException ignore) {
       throw new IllegalArgumentException(ignore);
     }
-    tokenMap = new HashMap<Long,Node>();
-    for (Node n: nodes) {
+    // the first node to claim a token keeps it
+    Map<Long,Integer> tokenMap = new HashMap<Long,Integer>();
+    for (int index = 0; index < nodes.size(); index++) {
+      Node n = nodes.get(index);
       long tokenCount = maxTokensPerNode*n.getWeight()/maxWeight;
       byte[] h = null;
       for (int i = 0; i < tokenCount; i++) {
@@ -68,36 +83,47 @@ class ConsistentHashingSelector implements Selector {
         h = ringMd.digest(input);
         long token = Utils.bstrTo32bit(h);
         if (!tokenMap.containsKey(token)) {
-          tokenMap.put(token, n);
+          tokenMap.put(token, index);
         }
       }
     }
 
-    tokenList = new ArrayList<Long>(tokenMap.keySet());
-    Collections.sort(tokenList);
+    tokens = new long[tokenMap.size()];
+    int i = 0;
+    for (Long token: tokenMap.keySet()) {
+      tokens[i++] = token;
+    }
+    Arrays.sort(tokens);
+    owners = new Node[tokens.length];
+    ownerIndexes = new int[tokens.length];
+    for (i = 0; i < tokens.length; i++) {
+      ownerIndexes[i] = tokenMap.get(tokens[i]);
+      owners[i] = nodes.get(ownerIndexes[i]);
+    }
   }
 
   public Node select(long input, long round) {
-    byte[] b = longToBytes(input, round);
-    byte[] h = md.digest(b);
-    long token = Utils.bstrTo32bit(h);
-    return tokenMap.get(findSuccessorToken(token));
+    long token = hashFunction.hash(input, round);
+    return owners[findSuccessorToken(token)];
   }
 
-  private byte[] longToBytes(long a, long b) {
-    ByteBuffer buf = ByteBuffer.allocate(8*2).putLong(a).putLong(b);
-    return buf.array();
+  public int selectIndex(long input, long round) {
+    long token = hashFunction.hash(input, round);
+    return ownerIndexes[findSuccessorToken(token)];
   }
 
-  private long findSuccessorToken(long token) {
-    int i = Collections.binarySearch(tokenList, token);
+  /**
+   * Returns the index of the first token that is equal to or larger than the given token.
+   */
+  private int findSuccessorToken(long token) {
+    int i = Arrays.binarySearch(tokens, token);
     if (i < 0) {
       i = -1 - i;
     }
-    // [sjlee] why?
-    if (i == tokenList.size()) {
+    // past the last token: wrap around the ring
+    if (i == tokens.length) {
       i = 0;
     }
-    return tokenList.get(i);
+    return i;
   }
 }
@@ -18,18 +18,105 @@ package com.twitter.crunch;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class Crunch {
-  private final MessageDigest md;
+  private static final Logger logger = LoggerFactory.getLogger(Crunch.class);
+
+  /**
+   * The default number of leaves below which a subtree is crunched by a single task.
+   */
+  public static final int DEFAULT_PARALLEL_THRESHOLD = 1024;
+
+  // the ids are hashed from any thread that crunches, so every thread gets its own digest
+  private static final ThreadLocal<MessageDigest> md = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+  };
+
+  private MultiInputHash consistentHashingFunction;
+  private int maglevTableSize;
+  private ExecutorService executor;
+  private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+  private boolean reportIdCollisions;
 
   public Crunch() {
-    try {
-      md = MessageDigest.getInstance("SHA-1");
-    } catch (NoSuchAlgorithmException ignore) {
-      throw new IllegalArgumentException(ignore);
+    // fail early if SHA-1 is not available
+    md.get();
+  }
+
+  /**
+   * Sets the hash function that places the data on the ring of the consistent hashing selectors
+   * created from here on, e.g. a {@link JenkinsHash} for faster selection. The function is shared
+   * by all those selectors, so it should be thread-safe if the crunched tree is used from multiple
+   * threads. If it is not set, the selectors use SHA-1, which keeps the selections of earlier
+   * versions.
+   */
+  public void setConsistentHashingFunction(MultiInputHash consistentHashingFunction) {
+    this.consistentHashingFunction = consistentHashingFunction;
+  }
+
+  /**
+   * Sets the lookup table size of the maglev selectors created from here on. It must be a prime
+   * larger than the number of children of every maglev node. If it is 0 (default), every table gets
+   * {@link MaglevSelector#DEFAULT_SLOTS_PER_NODE} slots per child, rounded up to a prime.
+   */
+  public void setMaglevTableSize(int maglevTableSize) {
+    if (maglevTableSize < 0) {
+      throw new IllegalArgumentException("negative table size: " + maglevTableSize);
+    }
+    this.maglevTableSize = maglevTableSize;
+  }
+
+  /**
+   * Sets the executor that crunches the subtrees of the topology in parallel. Subtrees with fewer
+   * leaves than the parallel threshold are crunched by a single task, and the nodes above them on
+   * the calling thread once their children are done. The result is the same as that of a serial
+   * crunch. If it is null (default), the whole tree is crunched on the calling thread. The executor
+   * is not shut down by this class.
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Sets the number of leaves below which a subtree is not split into parallel tasks any further.
+   * It only has an effect if an executor is set. Defaults to {@link #DEFAULT_PARALLEL_THRESHOLD}.
+   */
+  public void setParallelThreshold(int parallelThreshold) {
+    if (parallelThreshold < 1) {
+      throw new IllegalArgumentException("the threshold must be positive: " + parallelThreshold);
     }
+    this.parallelThreshold = parallelThreshold;
+  }
+
+  /**
+   * Sets whether {@link #makeCrunch(Node)} logs the nodes that share an id as a warning (see
+   * {@link #findIdCollisions(Node)}). The check walks and sorts the whole tree, so it is off by
+   * default; callers that crunch the same topology repeatedly, like {@link ProbingRDFMapping}, are
+   * better served by calling {@link #findIdCollisions(Node)} once.
+   */
+  public void setReportIdCollisions(boolean reportIdCollisions) {
+    this.reportIdCollisions = reportIdCollisions;
   }
 
   /**
@@ -43,18 +130,101 @@ public class Crunch {
    *   <li>both children and parent properties are set</li>
    *   <li>weights are assigned as sums of child weights</li>
    *   <li>the selector objects are created</li>
+   *   <li>the subtree indexes that answer the leaf and type queries of the nodes are built</li>
+   *   <li>the ancestor tables that answer {@link Node#findParent(int)} are built</li>
    * </ul>
-   * No modifications are done on the original topological nodes.
+   * If {@link #setReportIdCollisions(boolean)} is set, nodes that share an id (see
+   * {@link #findIdCollisions(Node)}) are logged as a warning.
+   * No modifications are done on the original topological nodes. If an executor is set, the
+   * subtrees are crunched in parallel on it.
    */
   public Node makeCrunch(Node topology) {
     if (topology.getType() != Types.ROOT) {
       throw new IllegalArgumentException("the root node is not the ROOT type!");
     }
 
-    return makeCrunchNode(topology);
+    Node root = executor == null ? makeCrunchNode(topology) : makeCrunchInParallel(topology);
+    // the parents are set bottom-up, so the ancestor tables need a separate pass from the top
+    indexAncestors(root, new Node[0]);
+    if (reportIdCollisions) {
+      for (Map.Entry<Long,List<Node>> e: findIdCollisions(root).entrySet()) {
+        logger.warn("nodes {} share the id {}", e.getValue(), e.getKey());
+      }
+    }
+    return root;
+  }
+
+  /**
+   * Returns the nodes of the tree that share their id with another node, by id. The ids are 32-bit
+   * hashes of the names, so different names can collide, and colliding nodes look the same to the
+   * selectors and to {@link Node#findNodeById(long)}.
+   * {@link #makeCrunch(Node)} reports them if asked to; {@link #addNode(Node, Node)} does not, as
+   * that would take a walk of the whole tree.
+   */
+  public static Map<Long,List<Node>> findIdCollisions(Node root) {
+    List<Node> nodes = new ArrayList<Node>();
+    collectNodes(root, nodes);
+    long[] ids = new long[nodes.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = nodes.get(i).getId();
+    }
+    Arrays.sort(ids);
+    Set<Long> duplicates = new HashSet<Long>();
+    for (int i = 1; i < ids.length; i++) {
+      if (ids[i] == ids[i - 1]) {
+        duplicates.add(ids[i]);
+      }
+    }
+
+    Map<Long,List<Node>> collisions = new TreeMap<Long,List<Node>>();
+    if (!duplicates.isEmpty()) {
+      for (Node node: nodes) {
+        if (duplicates.contains(node.getId())) {
+          List<Node> colliding = collisions.get(node.getId());
+          if (colliding == null) {
+            colliding = new ArrayList<Node>();
+            collisions.put(node.getId(), colliding);
+          }
+          colliding.add(node);
+        }
+      }
+    }
+    return collisions;
+  }
+
+  private static void collectNodes(Node node, List<Node> nodes) {
+    nodes.add(node);
+    if (!node.isLeaf()) {
+      for (Node child: node.getChildren()) {
+        collectNodes(child, nodes);
+      }
+    }
+  }
+
+  /**
+   * Crunches the topology like {@link #makeCrunch(Node)}, and returns it as an immutable snapshot
+   * that can be shared across threads. The snapshot is updated by deriving new snapshots from it,
+   * which share all unchanged subtrees with it.
+   */
+  public TopologySnapshot makeSnapshot(Node topology) {
+    return new TopologySnapshot(this, makeCrunch(topology));
+  }
+
+  /**
+   * Crunches the subtree, except for the ancestor tables, which need the parent chain.
+   */
+  Node makeCrunchNode(Node topologicalNode) {
+    return makeCrunchNode(topologicalNode, null);
   }
 
-  private Node makeCrunchNode(Node topologicalNode) {
+  /**
+   * Crunches the subtree, taking the subtrees that were forked to the executor (if any) from their
+   * tasks.
+   */
+  private Node makeCrunchNode(Node topologicalNode, Map<Node,Future<Node>> forks) {
+    if (forks != null && forks.containsKey(topologicalNode)) {
+      return getResult(forks.get(topologicalNode));
+    }
     // copy the intrinsic properties: id, weights, relationship, and selectors will be set
     Node node = new Node(topologicalNode);
     // assign the id from the name hash
@@ -64,21 +234,89 @@ public class Crunch {
       List<Node> children = topologicalNode.getChildren();
       for (Node child: children) {
         // depth-first traversal
-        Node newChild = makeCrunchNode(child);
+        Node newChild = makeCrunchNode(child, forks);
         // set the child-parent relationship
         newChildren.add(newChild);
         newChild.setParent(node);
       }
       node.setChildren(newChildren);
 
-      // weights and selector should be set after all lower nodes are crunched
+      // weights, selector and index should be set after all lower nodes are crunched
       computeWeightAndSelector(node);
+      node.setIndex(new NodeIndex(node));
     }
     return node;
   }
 
+  /**
+   * Crunches the subtrees below the parallel threshold as tasks on the executor, and then the nodes
+   * above them on this thread.
+   */
+  private Node makeCrunchInParallel(Node topology) {
+    Map<Node,Future<Node>> forks = new IdentityHashMap<Node,Future<Node>>();
+    try {
+      // nothing is forked if the tree is too small to split
+      fork(topology, forks);
+      return makeCrunchNode(topology, forks);
+    } finally {
+      // only does anything if a task failed
+      for (Future<Node> future: forks.values()) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Submits a task for each child subtree of a node that is over the threshold, if the subtree is
+   * not over the threshold itself. Leaf children are left to the parent. Returns the number of
+   * leaves in the subtree.
+   */
+  private int fork(Node topologicalNode, Map<Node,Future<Node>> forks) {
+    if (topologicalNode.isLeaf()) {
+      return 1;
+    }
+    List<Node> children = topologicalNode.getChildren();
+    int[] counts = new int[children.size()];
+    int count = 0;
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = fork(children.get(i), forks);
+      count += counts[i];
+    }
+    if (count > parallelThreshold) {
+      for (int i = 0; i < counts.length; i++) {
+        final Node child = children.get(i);
+        if (!child.isLeaf() && counts[i] <= parallelThreshold) {
+          forks.put(child, executor.submit(new Callable<Node>() {
+            public Node call() {
+              return makeCrunchNode(child);
+            }
+          }));
+        }
+      }
+    }
+    return count;
+  }
+
+  private static Node getResult(Future<Node> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while crunching", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
   private long computeId(Node node) {
-    byte[] h = md.digest(node.getName().getBytes());
+    byte[] h = md.get().digest(node.getName().getBytes());
     // TODO see if this is adequate as a unique id: I suspect it is...
     return Utils.bstrTo32bit(h);
   }
@@ -88,19 +326,193 @@ public class Crunch {
    * assumed to be a properly "crunched" tree. This is mainly to aid creating the "mini-tree" for
    * the data selection in the RDF mapping.
    * <br/>
-   * The only properties that are recalculated are the weights and the selectors.
+   * The only properties that are recalculated are the weights, the selectors, the subtree indexes
+   * and the ancestor tables. The weights and selectors of the ancestors of the node are left as
+   * they are, but their indexes, which may no longer be accurate, are built again.
    */
   public void recrunch(Node node) {
+    if (node.getParent() != null) {
+      node.getParent().invalidateIndex();
+    }
+    doRecrunch(node);
+    indexAncestors(node, ancestorTable(node.getParent()));
+    for (Node ancestor = node.getParent(); ancestor != null; ancestor = ancestor.getParent()) {
+      reindex(ancestor);
+    }
+  }
+
+  /**
+   * Crunches the topological subtree and adds it as the last child of the node of a crunched tree,
+   * in place. Only the new nodes are crunched; the weights, selectors and subtree indexes of the
+   * parent and its ancestors are recomputed, and the rest of the tree is left as it is. The
+   * topological subtree itself is not modified. Returns the crunched subtree.
+   * <br/>
+   * If a selector on the path cannot be rebuilt, e.g. a UNIFORM or JUMP bucket whose children would
+   * no longer weigh the same, the change is undone and the exception is rethrown, and the tree is
+   * left as it was.
+   */
+  public Node addNode(Node parent, Node topology) {
+    if (parent.isLeaf()) {
+      throw new IllegalArgumentException("you cannot add children to a leaf: " + parent);
+    }
+    Node child = makeCrunchNode(topology);
+    List<Node> oldChildren = parent.getChildren();
+    List<Node> children = new ArrayList<Node>(oldChildren);
+    children.add(child);
+    parent.setChildren(children);
+    child.setParent(parent);
+    indexAncestors(child, ancestorTable(parent));
+    try {
+      recrunchPath(parent);
+    } catch (RuntimeException e) {
+      parent.setChildren(oldChildren);
+      recrunchPath(parent);
+      throw e;
+    }
+    return child;
+  }
+
+  /**
+   * Removes the node and its subtree from a crunched tree, in place, and recomputes the weights,
+   * selectors and subtree indexes of its former ancestors. Neither the root nor the only child of a
+   * node can be removed. The removed subtree is left as it is. As with
+   * {@link #addNode(Node, Node)}, the change is undone if a selector on the path cannot be rebuilt.
+   */
+  public void removeNode(Node node) {
+    Node parent = node.getParent();
+    if (parent == null) {
+      throw new IllegalArgumentException("you cannot remove the root: " + node);
+    }
+    if (parent.getChildren().size() == 1) {
+      throw new IllegalArgumentException("you cannot remove the only child of a node: " + node);
+    }
+    List<Node> oldChildren = parent.getChildren();
+    List<Node> children = new ArrayList<Node>(oldChildren);
+    children.remove(node);
+    parent.setChildren(children);
+    try {
+      recrunchPath(parent);
+    } catch (RuntimeException e) {
+      parent.setChildren(oldChildren);
+      recrunchPath(parent);
+      throw e;
+    }
+  }
+
+  /**
+   * Sets the weight of a leaf of a crunched tree, and recomputes the weights and selectors of its
+   * ancestors. The subtree indexes do not depend on the weights, and are kept. As with
+   * {@link #addNode(Node, Node)}, the change is undone if a selector on the path cannot be rebuilt.
+   */
+  public void reweight(Node leaf, long weight) {
+    if (!leaf.isLeaf()) {
+      throw new IllegalArgumentException("only the weights of leaves can be set: " + leaf);
+    }
+    long oldWeight = leaf.getWeight();
+    leaf.setWeight(weight);
+    try {
+      recrunchPath(leaf.getParent());
+    } catch (RuntimeException e) {
+      leaf.setWeight(oldWeight);
+      recrunchPath(leaf.getParent());
+      throw e;
+    }
+  }
+
+  /**
+   * Marks a leaf of a crunched tree failed or not failed. The failed flag is checked during the
+   * placement, and neither the weights nor the selectors depend on it, so nothing is recomputed.
+   */
+  public void setFailed(Node leaf, boolean failed) {
+    leaf.setFailed(failed);
+  }
+
+  /**
+   * Recomputes the weights and selectors from the node up to the root, and builds the subtree
+   * indexes that were dropped along the way. A node is left without an index if one of its children
+   * has none, and its queries walk the tree instead.
+   */
+  private void recrunchPath(Node node) {
+    for (; node != null; node = node.getParent()) {
+      computeWeightAndSelector(node);
+      reindex(node);
+    }
+  }
+
+  /**
+   * Builds the subtree index of the node if it was dropped and all its children have theirs.
+   */
+  private static void reindex(Node node) {
+    if (node.getIndex() == null && childrenIndexed(node)) {
+      node.setIndex(new NodeIndex(node));
+    }
+  }
+
+  private static boolean childrenIndexed(Node node) {
+    for (Node child: node.getChildren()) {
+      if (!child.isLeaf() && child.getIndex() == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void doRecrunch(Node node) {
     if (!node.isLeaf()) {
       for (Node child: node.getChildren()) {
-        recrunch(child);
+        doRecrunch(child);
       }
 
       computeWeightAndSelector(node);
+      node.setIndex(new NodeIndex(node));
+    }
+  }
+
+  /**
+   * Builds the ancestor tables of the node and all its descendants from the table of its parent.
+   * Negative types cannot be indexed; such a node and its subtree are left without tables, and
+   * {@link Node#findParent(int)} walks the tree for them.
+   */
+  void indexAncestors(Node node, Node[] parentAncestors) {
+    Node[] ancestors = extendAncestors(parentAncestors, node);
+    if (ancestors == null) {
+      return;
+    }
+    node.setAncestors(ancestors);
+    if (!node.isLeaf()) {
+      for (Node child: node.getChildren()) {
+        indexAncestors(child, ancestors);
+      }
+    }
+  }
+
+  /**
+   * Returns the ancestor table of the node, computing it from the parent chain if the node does not
+   * have one. Returns an empty table for null, and null if the chain cannot be indexed. The
+   * computed tables are stored on the chain, so that a node with a table never has an ancestor
+   * without one, which the invalidation of the tables relies on.
+   */
+  private Node[] ancestorTable(Node node) {
+    if (node == null) {
+      return new Node[0];
+    }
+    if (node.getAncestors() == null) {
+      node.setAncestors(extendAncestors(ancestorTable(node.getParent()), node));
+    }
+    return node.getAncestors();
+  }
+
+  static Node[] extendAncestors(Node[] parentAncestors, Node node) {
+    int type = node.getType();
+    if (parentAncestors == null || type < 0) {
+      return null;
     }
+    Node[] ancestors = Arrays.copyOf(parentAncestors, Math.max(parentAncestors.length, type + 1));
+    ancestors[type] = node;
+    return ancestors;
   }
 
-  private void computeWeightAndSelector(Node node) {
+  void computeWeightAndSelector(Node node) {
     // set the weight after all its children are already "crunched"
     int weight = 0;
     for (Node child: node.getChildren()) {
@@ -114,9 +526,23 @@ public class Crunch {
   private Selector pickSelector(Node node) {
     switch (node.getSelection()) {
     case CONSISTENT_HASHING:
-      return new ConsistentHashingSelector(node);
+      return consistentHashingFunction == null ?
+          new ConsistentHashingSelector(node) :
+          new ConsistentHashingSelector(node, consistentHashingFunction);
     case STRAW:
       return new StrawSelector(node);
+    case STRAW2:
+      return new Straw2Selector(node);
+    case UNIFORM:
+      return new UniformSelector(node);
+    case LIST:
+      return new ListSelector(node);
+    case TREE:
+      return new TreeSelector(node);
+    case JUMP:
+      return new JumpSelector(node);
+    case MAGLEV:
+      return new MaglevSelector(node, maglevTableSize);
     default:
       throw new IllegalArgumentException("unrecognized type!");
     }
@@ -0,0 +1,28 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+/**
+ * Selector that can also report which child it selected by its position among the parent's children,
+ * so that callers holding the topology in arrays can select without going through the nodes.
+ */
+interface IndexedSelector extends Selector {
+  /**
+   * Selects one child based on the input value and an additional round value, and returns its index
+   * in the parent's list of children. It selects the same child as {@link #select(long, long)}.
+   */
+  int selectIndex(long input, long round);
+}
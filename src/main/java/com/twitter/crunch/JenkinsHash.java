@@ -15,126 +15,278 @@
 
 package com.twitter.crunch;
 
-public class JenkinsHash implements MultiInputHash {
-  // max value to limit it to 4 bytes
-  private static final long MAX_VALUE = 0xFFFFFFFFL;
-  private static final long CRUSH_HASH_SEED = 1315423911L;
-
-  /**
-   * Convert a byte into a long value without making it negative.
-   */
-  private static long byteToLong(byte b) {
-    long val = b & 0x7F;
-    if ((b & 0x80) != 0) {
-      val += 128;
-    }
-    return val;
-  }
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * The 32-bit Jenkins hash as used by CRUSH. All arithmetic is done on 32-bit ints, which wrap
+ * exactly like the 4-byte-masked longs of the original transcription, so that the results are
+ * identical to it. The mixing rounds are spelled out inline rather than factored into a method that
+ * returns the three mixed values, so that hashing does not allocate.
+ * <br/>
+ * The batch method can optionally run on a lane-blocked backend ({@link JenkinsHashLanes}) that
+ * hashes 8 or 16 ids at a time in a form the JIT can vectorize. It is enabled at runtime by setting
+ * the system property {@value #LANES_PROPERTY} to 8 or 16; the values are the same either way. Any
+ * other value is ignored with a warning.
+ */
+public class JenkinsHash implements BatchMultiInputHash {
   /**
-   * Do addition and turn into 4 bytes.
+   * System property that selects the number of lanes for the batch method. 0 (the default) uses the
+   * plain scalar loop.
    */
-  private static long add(long val, long add) {
-    return (val + add) & MAX_VALUE;
-  }
+  public static final String LANES_PROPERTY = "com.twitter.crunch.JenkinsHash.lanes";
+  private static final Logger logger = LoggerFactory.getLogger(JenkinsHash.class);
+  private static final int DEFAULT_LANES = checkLanes(Integer.getInteger(LANES_PROPERTY, 0));
 
-  /**
-   * Do subtraction and turn into 4 bytes.
-   */
-  private static long subtract(long val, long subtract) {
-    return (val - subtract) & MAX_VALUE;
-  }
+  // max value to limit it to 4 bytes
+  static final long MAX_VALUE = 0xFFFFFFFFL;
+  static final int X = 231232;
+  static final int Y = 1232;
+  private static final int CRUSH_HASH_SEED = 1315423911;
 
-  /**
-   * Left shift val by shift bits and turn in 4 bytes.
-   */
-  private static long xor(long val, long xor) {
-    return (val ^ xor) & MAX_VALUE;
-  }
+  private final ThreadLocal<JenkinsHashLanes> lanes;
 
-  /**
-   * Left shift val by shift bits.  Cut down to 4 bytes.
-   */
-  private static long leftShift(long val, int shift) {
-    return (val << shift) & MAX_VALUE;
+  public JenkinsHash() {
+    this(DEFAULT_LANES);
   }
 
   /**
-   * Convert 4 bytes from the buffer at offset into a long value.
+   * Creates the hash with the given number of lanes for the batch method: 0 for the scalar loop, or
+   * 8 or 16 for the lane-blocked backend.
    */
-  private static long fourByteToLong(byte[] bytes, int offset) {
-    return (byteToLong(bytes[offset + 0])
-        + (byteToLong(bytes[offset + 1]) << 8)
-        + (byteToLong(bytes[offset + 2]) << 16)
-        + (byteToLong(bytes[offset + 3]) << 24));
+  JenkinsHash(final int laneCount) {
+    if (laneCount == 0) {
+      lanes = null;
+    } else if (isValidLanes(laneCount)) {
+      lanes = new ThreadLocal<JenkinsHashLanes>() {
+        @Override
+        protected JenkinsHashLanes initialValue() {
+          return new JenkinsHashLanes(laneCount);
+        }
+      };
+    } else {
+      throw new IllegalArgumentException("lanes must be 0, 8, or 16: " + laneCount);
+    }
   }
 
   /**
-   * Mix up the values in the hash function.
+   * Returns the number of lanes set by the system property, or 0 (the scalar loop) if it is not a
+   * valid number of lanes: a tuning property must not be able to break the hashing.
    */
-  private static Triple hashMix(Triple t) {
-    long a = t.a; long b = t.b; long c = t.c;
-    a = subtract(a, b); a = subtract(a, c); a = xor(a, c >> 13);
-    b = subtract(b, c); b = subtract(b, a); b = xor(b, leftShift(a, 8));
-    c = subtract(c, a); c = subtract(c, b); c = xor(c, (b >> 13));
-    a = subtract(a, b); a = subtract(a, c); a = xor(a, (c >> 12));
-    b = subtract(b, c); b = subtract(b, a); b = xor(b, leftShift(a, 16));
-    c = subtract(c, a); c = subtract(c, b); c = xor(c, (b >> 5));
-    a = subtract(a, b); a = subtract(a, c); a = xor(a, (c >> 3));
-    b = subtract(b, c); b = subtract(b, a); b = xor(b, leftShift(a, 10));
-    c = subtract(c, a); c = subtract(c, b); c = xor(c, (b >> 15));
-    return new Triple(a, b, c);
+  static int checkLanes(int laneCount) {
+    if (laneCount == 0 || isValidLanes(laneCount)) {
+      return laneCount;
+    }
+    logger.warn("ignoring {}={}: the lanes must be 0, 8, or 16; using the scalar loop",
+        LANES_PROPERTY, laneCount);
+    return 0;
   }
 
-  private static class Triple {
-    long a;
-    long b;
-    long c;
-
-    public Triple(long a, long b, long c) {
-      this.a = a; this.b = b; this.c = c;
-    }
+  private static boolean isValidLanes(int laneCount) {
+    return laneCount == 8 || laneCount == 16;
   }
 
   public long hash(long a) {
-    long hash = xor(CRUSH_HASH_SEED, a);
-    long b = a;
-    long x = 231232L;
-    long y = 1232L;
-    Triple val = hashMix(new Triple(b, x, hash));
-    b = val.a; x = val.b; hash = val.c;
-    val = hashMix(new Triple(y, a, hash));
-    hash = val.c;
-    return hash;
+    int ia = (int)a;
+    int hash = CRUSH_HASH_SEED ^ ia;
+    int b = ia;
+    int x = X;
+    int y = Y;
+    // mix(b, x, hash)
+    b -= x; b -= hash; b ^= (hash >>> 13);
+    x -= hash; x -= b; x ^= (b << 8);
+    hash -= b; hash -= x; hash ^= (x >>> 13);
+    b -= x; b -= hash; b ^= (hash >>> 12);
+    x -= hash; x -= b; x ^= (b << 16);
+    hash -= b; hash -= x; hash ^= (x >>> 5);
+    b -= x; b -= hash; b ^= (hash >>> 3);
+    x -= hash; x -= b; x ^= (b << 10);
+    hash -= b; hash -= x; hash ^= (x >>> 15);
+    // mix(y, a, hash)
+    y -= ia; y -= hash; y ^= (hash >>> 13);
+    ia -= hash; ia -= y; ia ^= (y << 8);
+    hash -= y; hash -= ia; hash ^= (ia >>> 13);
+    y -= ia; y -= hash; y ^= (hash >>> 12);
+    ia -= hash; ia -= y; ia ^= (y << 16);
+    hash -= y; hash -= ia; hash ^= (ia >>> 5);
+    y -= ia; y -= hash; y ^= (hash >>> 3);
+    ia -= hash; ia -= y; ia ^= (y << 10);
+    hash -= y; hash -= ia; hash ^= (ia >>> 15);
+    return hash & MAX_VALUE;
   }
 
   public long hash(long a, long b) {
-    long hash = xor(xor(CRUSH_HASH_SEED, a), b);
-    long x = 231232L;
-    long y = 1232L;
-    Triple val = hashMix(new Triple(a, b, hash));
-    a = val.a; b = val.b; hash = val.c;
-    val = hashMix(new Triple(x, a, hash));
-    x = val.a; a = val.b; hash = val.c;
-    val = hashMix(new Triple(b, y, hash));
-    hash = val.c;
-    return hash;
+    int ia = (int)a;
+    int ib = (int)b;
+    int hash = CRUSH_HASH_SEED ^ ia ^ ib;
+    int x = X;
+    int y = Y;
+    // mix(a, b, hash)
+    ia -= ib; ia -= hash; ia ^= (hash >>> 13);
+    ib -= hash; ib -= ia; ib ^= (ia << 8);
+    hash -= ia; hash -= ib; hash ^= (ib >>> 13);
+    ia -= ib; ia -= hash; ia ^= (hash >>> 12);
+    ib -= hash; ib -= ia; ib ^= (ia << 16);
+    hash -= ia; hash -= ib; hash ^= (ib >>> 5);
+    ia -= ib; ia -= hash; ia ^= (hash >>> 3);
+    ib -= hash; ib -= ia; ib ^= (ia << 10);
+    hash -= ia; hash -= ib; hash ^= (ib >>> 15);
+    // mix(x, a, hash)
+    x -= ia; x -= hash; x ^= (hash >>> 13);
+    ia -= hash; ia -= x; ia ^= (x << 8);
+    hash -= x; hash -= ia; hash ^= (ia >>> 13);
+    x -= ia; x -= hash; x ^= (hash >>> 12);
+    ia -= hash; ia -= x; ia ^= (x << 16);
+    hash -= x; hash -= ia; hash ^= (ia >>> 5);
+    x -= ia; x -= hash; x ^= (hash >>> 3);
+    ia -= hash; ia -= x; ia ^= (x << 10);
+    hash -= x; hash -= ia; hash ^= (ia >>> 15);
+    // mix(b, y, hash)
+    ib -= y; ib -= hash; ib ^= (hash >>> 13);
+    y -= hash; y -= ib; y ^= (ib << 8);
+    hash -= ib; hash -= y; hash ^= (y >>> 13);
+    ib -= y; ib -= hash; ib ^= (hash >>> 12);
+    y -= hash; y -= ib; y ^= (ib << 16);
+    hash -= ib; hash -= y; hash ^= (y >>> 5);
+    ib -= y; ib -= hash; ib ^= (hash >>> 3);
+    y -= hash; y -= ib; y ^= (ib << 10);
+    hash -= ib; hash -= y; hash ^= (y >>> 15);
+    return hash & MAX_VALUE;
   }
 
   public long hash(long a, long b, long c) {
-    long hash = xor(xor(xor(CRUSH_HASH_SEED, a), b), c);
-    long x = 231232L;
-    long y = 1232L;
-    Triple val = hashMix(new Triple(a, b, hash));
-    a = val.a; b = val.b; hash = val.c;
-    val = hashMix(new Triple(c, x, hash));
-    c = val.a; x = val.b; hash = val.c;
-    val = hashMix(new Triple(y, a, hash));
-    y = val.a; a = val.b; hash = val.c;
-    val = hashMix(new Triple(b, x, hash));
-    b = val.a; x = val.b; hash = val.c;
-    val = hashMix(new Triple(y, c, hash));
-    hash = val.c;
-    return hash;
+    int ia = (int)a;
+    int ib = (int)b;
+    int ic = (int)c;
+    int hash = CRUSH_HASH_SEED ^ ia ^ ib ^ ic;
+    int x = X;
+    int y = Y;
+    // mix(a, b, hash)
+    ia -= ib; ia -= hash; ia ^= (hash >>> 13);
+    ib -= hash; ib -= ia; ib ^= (ia << 8);
+    hash -= ia; hash -= ib; hash ^= (ib >>> 13);
+    ia -= ib; ia -= hash; ia ^= (hash >>> 12);
+    ib -= hash; ib -= ia; ib ^= (ia << 16);
+    hash -= ia; hash -= ib; hash ^= (ib >>> 5);
+    ia -= ib; ia -= hash; ia ^= (hash >>> 3);
+    ib -= hash; ib -= ia; ib ^= (ia << 10);
+    hash -= ia; hash -= ib; hash ^= (ib >>> 15);
+    // mix(c, x, hash)
+    ic -= x; ic -= hash; ic ^= (hash >>> 13);
+    x -= hash; x -= ic; x ^= (ic << 8);
+    hash -= ic; hash -= x; hash ^= (x >>> 13);
+    ic -= x; ic -= hash; ic ^= (hash >>> 12);
+    x -= hash; x -= ic; x ^= (ic << 16);
+    hash -= ic; hash -= x; hash ^= (x >>> 5);
+    ic -= x; ic -= hash; ic ^= (hash >>> 3);
+    x -= hash; x -= ic; x ^= (ic << 10);
+    hash -= ic; hash -= x; hash ^= (x >>> 15);
+    // mix(y, a, hash)
+    y -= ia; y -= hash; y ^= (hash >>> 13);
+    ia -= hash; ia -= y; ia ^= (y << 8);
+    hash -= y; hash -= ia; hash ^= (ia >>> 13);
+    y -= ia; y -= hash; y ^= (hash >>> 12);
+    ia -= hash; ia -= y; ia ^= (y << 16);
+    hash -= y; hash -= ia; hash ^= (ia >>> 5);
+    y -= ia; y -= hash; y ^= (hash >>> 3);
+    ia -= hash; ia -= y; ia ^= (y << 10);
+    hash -= y; hash -= ia; hash ^= (ia >>> 15);
+    // mix(b, x, hash)
+    ib -= x; ib -= hash; ib ^= (hash >>> 13);
+    x -= hash; x -= ib; x ^= (ib << 8);
+    hash -= ib; hash -= x; hash ^= (x >>> 13);
+    ib -= x; ib -= hash; ib ^= (hash >>> 12);
+    x -= hash; x -= ib; x ^= (ib << 16);
+    hash -= ib; hash -= x; hash ^= (x >>> 5);
+    ib -= x; ib -= hash; ib ^= (hash >>> 3);
+    x -= hash; x -= ib; x ^= (ib << 10);
+    hash -= ib; hash -= x; hash ^= (x >>> 15);
+    // mix(y, c, hash)
+    y -= ic; y -= hash; y ^= (hash >>> 13);
+    ic -= hash; ic -= y; ic ^= (y << 8);
+    hash -= y; hash -= ic; hash ^= (ic >>> 13);
+    y -= ic; y -= hash; y ^= (hash >>> 12);
+    ic -= hash; ic -= y; ic ^= (y << 16);
+    hash -= y; hash -= ic; hash ^= (ic >>> 5);
+    y -= ic; y -= hash; y ^= (hash >>> 3);
+    ic -= hash; ic -= y; ic ^= (y << 10);
+    hash -= y; hash -= ic; hash ^= (ic >>> 15);
+    return hash & MAX_VALUE;
+  }
+
+  /**
+   * Batch version of {@link #hash(long, long, long)}. The loop body is the same straight-line int
+   * arithmetic with no calls or allocation, which keeps it small enough for the JIT to unroll. If
+   * the lane-blocked backend is enabled, whole blocks are hashed by it and only the tail is left to
+   * the scalar loop.
+   */
+  public void hash(long a, long[] b, long c, long[] result) {
+    final int a0 = (int)a;
+    final int c0 = (int)c;
+    final int seed = CRUSH_HASH_SEED ^ a0 ^ c0;
+    final int length = b.length;
+    int start = 0;
+    if (lanes != null) {
+      start = lanes.get().hashBlocks(a0, b, c0, seed, result, length);
+    }
+    for (int i = start; i < length; i++) {
+      int ia = a0;
+      int ib = (int)b[i];
+      int ic = c0;
+      int hash = seed ^ ib;
+      int x = X;
+      int y = Y;
+      // mix(a, b, hash)
+      ia -= ib; ia -= hash; ia ^= (hash >>> 13);
+      ib -= hash; ib -= ia; ib ^= (ia << 8);
+      hash -= ia; hash -= ib; hash ^= (ib >>> 13);
+      ia -= ib; ia -= hash; ia ^= (hash >>> 12);
+      ib -= hash; ib -= ia; ib ^= (ia << 16);
+      hash -= ia; hash -= ib; hash ^= (ib >>> 5);
+      ia -= ib; ia -= hash; ia ^= (hash >>> 3);
+      ib -= hash; ib -= ia; ib ^= (ia << 10);
+      hash -= ia; hash -= ib; hash ^= (ib >>> 15);
+      // mix(c, x, hash)
+      ic -= x; ic -= hash; ic ^= (hash >>> 13);
+      x -= hash; x -= ic; x ^= (ic << 8);
+      hash -= ic; hash -= x; hash ^= (x >>> 13);
+      ic -= x; ic -= hash; ic ^= (hash >>> 12);
+      x -= hash; x -= ic; x ^= (ic << 16);
+      hash -= ic; hash -= x; hash ^= (x >>> 5);
+      ic -= x; ic -= hash; ic ^= (hash >>> 3);
+      x -= hash; x -= ic; x ^= (ic << 10);
+      hash -= ic; hash -= x; hash ^= (x >>> 15);
+      // mix(y, a, hash)
+      y -= ia; y -= hash; y ^= (hash >>> 13);
+      ia -= hash; ia -= y; ia ^= (y << 8);
+      hash -= y; hash -= ia; hash ^= (ia >>> 13);
+      y -= ia; y -= hash; y ^= (hash >>> 12);
+      ia -= hash; ia -= y; ia ^= (y << 16);
+      hash -= y; hash -= ia; hash ^= (ia >>> 5);
+      y -= ia; y -= hash; y ^= (hash >>> 3);
+      ia -= hash; ia -= y; ia ^= (y << 10);
+      hash -= y; hash -= ia; hash ^= (ia >>> 15);
+      // mix(b, x, hash)
+      ib -= x; ib -= hash; ib ^= (hash >>> 13);
+      x -= hash; x -= ib; x ^= (ib << 8);
+      hash -= ib; hash -= x; hash ^= (x >>> 13);
+      ib -= x; ib -= hash; ib ^= (hash >>> 12);
+      x -= hash; x -= ib; x ^= (ib << 16);
+      hash -= ib; hash -= x; hash ^= (x >>> 5);
+      ib -= x; ib -= hash; ib ^= (hash >>> 3);
+      x -= hash; x -= ib; x ^= (ib << 10);
+      hash -= ib; hash -= x; hash ^= (x >>> 15);
+      // mix(y, c, hash)
+      y -= ic; y -= hash; y ^= (hash >>> 13);
+      ic -= hash; ic -= y; ic ^= (y << 8);
+      hash -= y; hash -= ic; hash ^= (ic >>> 13);
+      y -= ic; y -= hash; y ^= (hash >>> 12);
+      ic -= hash; ic -= y; ic ^= (y << 16);
+      hash -= y; hash -= ic; hash ^= (ic >>> 5);
+      y -= ic; y -= hash; y ^= (hash >>> 3);
+      ic -= hash; ic -= y; ic ^= (y << 10);
+      hash -= y; hash -= ic; hash ^= (ic >>> 15);
+      result[i] = hash & MAX_VALUE;
+    }
   }
 }
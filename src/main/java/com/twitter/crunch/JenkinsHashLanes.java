@@ -0,0 +1,112 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+/**
+ * Lane-blocked backend for the batch {@link JenkinsHash}. Children are hashed a block of 8 or 16
+ * at a time, with every Jenkins state variable held as an int array with one element per lane. Each
+ * step of the mix is then a short loop with a constant trip count over int arrays only, which is
+ * the shape the JIT's superword optimization turns into SIMD instructions. The 32-bit values are
+ * identical to the scalar path. A tail that does not fill a block is left to the caller.
+ * <br/>
+ * Instances hold the lane state and are not thread-safe; {@link JenkinsHash} keeps one per thread.
+ */
+final class JenkinsHashLanes {
+  private final int lanes;
+  private final int[] laneA;
+  private final int[] laneB;
+  private final int[] laneC;
+  private final int[] laneX;
+  private final int[] laneY;
+  private final int[] laneHash;
+
+  JenkinsHashLanes(int lanes) {
+    this.lanes = lanes;
+    laneA = new int[lanes];
+    laneB = new int[lanes];
+    laneC = new int[lanes];
+    laneX = new int[lanes];
+    laneY = new int[lanes];
+    laneHash = new int[lanes];
+  }
+
+  int getLanes() {
+    return lanes;
+  }
+
+  /**
+   * Hashes as many whole blocks of ids as fit in the given length, and returns the number of ids
+   * that were hashed.
+   */
+  int hashBlocks(int a0, long[] ids, int c0, int seed, long[] result, int length) {
+    final int n = lanes;
+    final int end = length - length%n;
+    for (int start = 0; start < end; start += n) {
+      for (int i = 0; i < n; i++) {
+        int id = (int)ids[start + i];
+        laneA[i] = a0;
+        laneB[i] = id;
+        laneC[i] = c0;
+        laneX[i] = JenkinsHash.X;
+        laneY[i] = JenkinsHash.Y;
+        laneHash[i] = seed ^ id;
+      }
+      mix(laneA, laneB, laneHash);
+      mix(laneC, laneX, laneHash);
+      mix(laneY, laneA, laneHash);
+      mix(laneB, laneX, laneHash);
+      mix(laneY, laneC, laneHash);
+      for (int i = 0; i < n; i++) {
+        result[start + i] = laneHash[i] & JenkinsHash.MAX_VALUE;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * The Jenkins mix applied to all lanes, one statement of the scalar mix per loop.
+   */
+  private void mix(int[] a, int[] b, int[] c) {
+    final int n = lanes;
+    for (int i = 0; i < n; i++) {
+      a[i] = (a[i] - b[i] - c[i]) ^ (c[i] >>> 13);
+    }
+    for (int i = 0; i < n; i++) {
+      b[i] = (b[i] - c[i] - a[i]) ^ (a[i] << 8);
+    }
+    for (int i = 0; i < n; i++) {
+      c[i] = (c[i] - a[i] - b[i]) ^ (b[i] >>> 13);
+    }
+    for (int i = 0; i < n; i++) {
+      a[i] = (a[i] - b[i] - c[i]) ^ (c[i] >>> 12);
+    }
+    for (int i = 0; i < n; i++) {
+      b[i] = (b[i] - c[i] - a[i]) ^ (a[i] << 16);
+    }
+    for (int i = 0; i < n; i++) {
+      c[i] = (c[i] - a[i] - b[i]) ^ (b[i] >>> 5);
+    }
+    for (int i = 0; i < n; i++) {
+      a[i] = (a[i] - b[i] - c[i]) ^ (c[i] >>> 3);
+    }
+    for (int i = 0; i < n; i++) {
+      b[i] = (b[i] - c[i] - a[i]) ^ (a[i] << 10);
+    }
+    for (int i = 0; i < n; i++) {
+      c[i] = (c[i] - a[i] - b[i]) ^ (b[i] >>> 15);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.List;
+
+/**
+ * Selection algorithm based on the jump consistent hash of Lamping and Veach, for children that all
+ * have the same weight. It needs no ring or table: the child is computed from a hash of the input,
+ * the bucket id and the round in O(ln n) steps.
+ * <br/>
+ * Like the ring, appending a child only moves data to that child, but removing a child other than
+ * the last one shifts the positions of the children after it and moves much of their data.
+ */
+class JumpSelector implements IndexedSelector {
+  private static final MultiInputHash hashFunction = new JenkinsHash();
+
+  private final Node[] nodes;
+  private final long id;
+
+  public JumpSelector(Node node) {
+    if (node.isLeaf()) {
+      throw new IllegalArgumentException();
+    }
+    List<Node> children = node.getChildren();
+    nodes = children.toArray(new Node[children.size()]);
+    for (Node child: nodes) {
+      if (child.getWeight() != nodes[0].getWeight()) {
+        throw new IllegalArgumentException("the jump selection requires children of equal " +
+            "weight but " + node.getName() + " has children weighing " + nodes[0].getWeight() +
+            " and " + child.getWeight());
+      }
+    }
+    id = node.getId();
+  }
+
+  public Node select(long input, long round) {
+    return nodes[selectIndex(input, round)];
+  }
+
+  public int selectIndex(long input, long round) {
+    return jump(hashFunction.hash(input, id, round), nodes.length);
+  }
+
+  /**
+   * Returns the bucket in [0, buckets) for the key.
+   */
+  static int jump(long key, int buckets) {
+    long b = -1;
+    long j = 0;
+    while (j < buckets) {
+      b = j;
+      key = key*2862933555777941781L + 1;
+      j = (long)((b + 1)*((double)(1L << 31)/(double)((key >>> 33) + 1)));
+    }
+    return (int)b;
+  }
+}
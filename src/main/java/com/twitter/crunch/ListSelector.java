@@ -0,0 +1,71 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.List;
+
+/**
+ * Selection algorithm based on the "list" bucket type of CRUSH. The children are examined from the
+ * last one to the first, and child i is picked with the probability of its weight over the total
+ * weight of children 0 through i. Selection is O(n), but appending a child is optimal: the only data
+ * that moves is data that moves to the new child. Removing or reweighting a child near the head of
+ * the list, on the other hand, can reshuffle a lot of data.
+ */
+class ListSelector implements IndexedSelector {
+  private static final MultiInputHash hashFunction = new JenkinsHash();
+
+  private final Node[] nodes;
+  private final long[] ids;
+  private final long[] weights;
+  // sum of the weights of children 0..i
+  private final long[] sumWeights;
+
+  public ListSelector(Node node) {
+    if (node.isLeaf()) {
+      throw new IllegalArgumentException();
+    }
+    List<Node> children = node.getChildren();
+    final int size = children.size();
+    nodes = new Node[size];
+    ids = new long[size];
+    weights = new long[size];
+    sumWeights = new long[size];
+    long sum = 0;
+    for (int i = 0; i < size; i++) {
+      Node child = children.get(i);
+      nodes[i] = child;
+      ids[i] = child.getId();
+      weights[i] = child.getWeight();
+      sum += weights[i];
+      sumWeights[i] = sum;
+    }
+  }
+
+  public Node select(long input, long round) {
+    return nodes[selectIndex(input, round)];
+  }
+
+  public int selectIndex(long input, long round) {
+    for (int i = nodes.length - 1; i > 0; i--) {
+      long draw = ((hashFunction.hash(input, ids[i], round) & 0xffff)*sumWeights[i]) >>> 16;
+      if (draw < weights[i]) {
+        return i;
+      }
+    }
+    // the first child takes whatever is left
+    return 0;
+  }
+}
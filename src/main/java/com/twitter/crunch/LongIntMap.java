@@ -0,0 +1,112 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.Arrays;
+
+/**
+ * A map from long to int with open addressing and linear probing in primitive arrays, so that
+ * neither the keys nor the values are boxed. Clearing it keeps the arrays for reuse. It supports no
+ * removal of single keys, which the users do not need.
+ */
+final class LongIntMap {
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+  private int[] values;
+  private boolean[] used;
+  private int mask;
+  private int size;
+
+  LongIntMap() {
+    allocate(MIN_CAPACITY);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * Returns the value of the key, or the default value if the key is not in the map.
+   */
+  int get(long key, int defaultValue) {
+    for (int i = slot(key); used[i]; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return values[i];
+      }
+    }
+    return defaultValue;
+  }
+
+  void put(long key, int value) {
+    int i = slot(key);
+    for (; used[i]; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        values[i] = value;
+        return;
+      }
+    }
+    keys[i] = key;
+    values[i] = value;
+    used[i] = true;
+    // keep the load under one half, so that the probes stay short
+    if (++size*2 > keys.length) {
+      grow();
+    }
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    boolean[] oldUsed = used;
+    allocate(oldKeys.length*2);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldUsed[i]) {
+        int j = slot(oldKeys[i]);
+        while (used[j]) {
+          j = (j + 1) & mask;
+        }
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+        used[j] = true;
+      }
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Removes all keys, keeping the capacity the map has grown to.
+   */
+  void clear() {
+    Arrays.fill(used, false);
+    size = 0;
+  }
+
+  private int slot(long key) {
+    // the finalizer of MurmurHash3 spreads the sequential and the 32-bit ids over the table
+    long h = key;
+    h = (h ^ (h >>> 33))*0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33))*0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int)h & mask;
+  }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selection algorithm based on the Maglev lookup table. The table is filled once from a
+ * per-child permutation of its slots, and selection is a single hash and an array lookup.
+ * <br/>
+ * Children take turns filling their next preferred free slot, and a child's turns come in
+ * proportion to its weight, so its share of the table approximates its share of the weight. The
+ * table size must be a prime larger than the number of children; the larger the table, the closer
+ * the shares are to the weights and the less data moves when a child is added or removed.
+ */
+class MaglevSelector implements IndexedSelector {
+  /**
+   * By default the table has at least this many slots per child.
+   */
+  public static final int DEFAULT_SLOTS_PER_NODE = 100;
+
+  private static final MultiInputHash hashFunction = new JenkinsHash();
+  private static final Logger logger = LoggerFactory.getLogger(MaglevSelector.class);
+
+  private final Node[] nodes;
+  private final long id;
+  private final int[] table;
+
+  public MaglevSelector(Node node) {
+    this(node, 0);
+  }
+
+  /**
+   * Creates the selector with a table of the given size. If the size is 0, the table gets at least
+   * {@link #DEFAULT_SLOTS_PER_NODE} slots per child: the size is the smallest prime after a power of
+   * two, so that adding or removing a few children usually keeps the size, and with it the slots
+   * of the other children.
+   */
+  public MaglevSelector(Node node, int tableSize) {
+    if (node.isLeaf()) {
+      throw new IllegalArgumentException();
+    }
+    List<Node> children = node.getChildren();
+    nodes = children.toArray(new Node[children.size()]);
+    id = node.getId();
+    if (tableSize == 0) {
+      int minimum = DEFAULT_SLOTS_PER_NODE*nodes.length;
+      int powerOfTwo = Integer.highestOneBit(minimum);
+      if (powerOfTwo < minimum) {
+        powerOfTwo <<= 1;
+      }
+      tableSize = (int)Utils.nextPrime(powerOfTwo);
+    } else if (tableSize <= nodes.length || !Utils.isPrime(tableSize)) {
+      throw new IllegalArgumentException("the table size must be a prime larger than the number " +
+          "of children (" + nodes.length + "): " + tableSize);
+    }
+    table = populate(tableSize);
+    if (logger.isDebugEnabled()) {
+      logger.debug("maglev table for {} has {} slots with a maximum relative weight deviation of {}",
+          new Object[] {node, tableSize, getMaxWeightDeviation()});
+    }
+  }
+
+  public Node select(long input, long round) {
+    return nodes[selectIndex(input, round)];
+  }
+
+  public int selectIndex(long input, long round) {
+    return table[(int)(hashFunction.hash(input, id, round) % table.length)];
+  }
+
+  private int[] populate(final int size) {
+    final int count = nodes.length;
+    long[] weights = new long[count];
+    long maxWeight = 0;
+    for (int i = 0; i < count; i++) {
+      weights[i] = nodes[i].getWeight();
+      maxWeight = Math.max(maxWeight, weights[i]);
+    }
+    if (maxWeight == 0) { // nothing to go by: treat the children equally
+      Arrays.fill(weights, 1);
+      maxWeight = 1;
+    }
+
+    // each child walks the slots in its own order: offset, offset + skip, offset + 2*skip, ...
+    long[] offsets = new long[count];
+    long[] skips = new long[count];
+    long[] next = new long[count];
+    long[] credits = new long[count];
+    for (int i = 0; i < count; i++) {
+      long childId = nodes[i].getId();
+      offsets[i] = hashFunction.hash(id, childId, 0)%size;
+      skips[i] = hashFunction.hash(id, childId, 1)%(size - 1) + 1;
+    }
+
+    int[] entries = new int[size];
+    Arrays.fill(entries, -1);
+    int filled = 0;
+    while (true) {
+      for (int i = 0; i < count; i++) {
+        // a child gets a turn every time its credit reaches the maximum weight
+        credits[i] += weights[i];
+        if (credits[i] < maxWeight) {
+          continue;
+        }
+        credits[i] -= maxWeight;
+        int slot;
+        do {
+          slot = (int)((offsets[i] + next[i]*skips[i])%size);
+          next[i]++;
+        } while (entries[slot] >= 0);
+        entries[slot] = i;
+        if (++filled == size) {
+          return entries;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the largest relative difference between a child's share of the table and its share of
+   * the total weight, over the children that have a weight.
+   */
+  double getMaxWeightDeviation() {
+    long totalWeight = 0;
+    for (Node n: nodes) {
+      totalWeight += n.getWeight();
+    }
+    int[] slots = new int[nodes.length];
+    for (int index: table) {
+      slots[index]++;
+    }
+    double max = 0.0d;
+    for (int i = 0; i < nodes.length; i++) {
+      if (nodes[i].getWeight() > 0) {
+        double expected = ((double)nodes[i].getWeight())/totalWeight;
+        double actual = ((double)slots[i])/table.length;
+        max = Math.max(max, Math.abs(actual - expected)/expected);
+      }
+    }
+    return max;
+  }
+}
@@ -19,17 +19,32 @@ import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+/**
+ * Hash function based on a message digest. A MessageDigest is not thread-safe, so every thread gets
+ * its own; a single instance of this class can be shared by many threads.
+ */
 public class MessageDigestHash implements MultiInputHash {
   private final String algorithm;
-  private final MessageDigest md;
+  private final ThreadLocal<MessageDigest> md;
 
-  public MessageDigestHash(String algorithm) {
+  public MessageDigestHash(final String algorithm) {
     this.algorithm = algorithm;
+    // fail early on a bad algorithm
     try {
-      md = MessageDigest.getInstance(algorithm);
+      MessageDigest.getInstance(algorithm);
     } catch (NoSuchAlgorithmException e) {
       throw new IllegalArgumentException("invalid algorithm passed in", e);
     }
+    md = new ThreadLocal<MessageDigest>() {
+      @Override
+      protected MessageDigest initialValue() {
+        try {
+          return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) { // should not occur
+          throw new IllegalStateException(e);
+        }
+      }
+    };
   }
 
   public String getAlgorithm() {
@@ -54,7 +69,7 @@ public class MessageDigestHash implements MultiInputHash {
   }
 
   private long hashFromBuffer(ByteBuffer buf) {
-    byte[] result = md.digest(buf.array());
+    byte[] result = md.get().digest(buf.array());
     return Utils.bstrTo32bit(result);
   }
 }
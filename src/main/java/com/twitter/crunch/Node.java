@@ -16,10 +16,11 @@
 package com.twitter.crunch;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class Node implements Comparable<Node> {
-  public enum Selection { STRAW, CONSISTENT_HASHING }
+  public enum Selection { STRAW, CONSISTENT_HASHING, STRAW2, UNIFORM, LIST, TREE, JUMP, MAGLEV }
 
   private String name;
   private int type;
@@ -31,8 +32,15 @@ public class Node implements Comparable<Node> {
   private Node parent;
 
   private Selector selector;
+  // set by the crunch; null if the node is not indexed or the index was invalidated
+  private NodeIndex index;
+  // set by the crunch; entry t is the closest node of type t on the path from this node to the
+  // root (including this node), or null if there is none
+  private Node[] ancestors;
 
   private boolean failed;
+  // set once the node is part of a topology snapshot; a frozen node never changes again
+  private boolean frozen;
 
   public Node() {}
 
@@ -50,7 +58,9 @@ public class Node implements Comparable<Node> {
   }
 
   public void setName(String name) {
+    checkNotFrozen();
     this.name = name;
+    invalidateIndex();
   }
 
   public int getType() {
@@ -58,7 +68,10 @@ public class Node implements Comparable<Node> {
   }
 
   public void setType(int type) {
+    checkNotFrozen();
     this.type = type;
+    invalidateIndex();
+    invalidateAncestors();
   }
 
   public long getId() {
@@ -66,7 +79,9 @@ public class Node implements Comparable<Node> {
   }
 
   public void setId(long id) {
+    checkNotFrozen();
     this.id = id;
+    invalidateIndex();
   }
 
   public long getWeight() {
@@ -74,6 +89,7 @@ public class Node implements Comparable<Node> {
   }
 
   public void setWeight(long weight) {
+    checkNotFrozen();
     this.weight = weight;
   }
 
@@ -82,6 +98,7 @@ public class Node implements Comparable<Node> {
   }
 
   public void setSelection(Selection selection) {
+    checkNotFrozen();
     this.selection = selection;
   }
 
@@ -91,6 +108,7 @@ public class Node implements Comparable<Node> {
   }
 
   public void setFailed(boolean failed) {
+    checkNotFrozen();
     if (!isLeaf()) {
       throw new UnsupportedOperationException("you cannot set failed on a non-leaf!");
     }
@@ -102,19 +120,30 @@ public class Node implements Comparable<Node> {
   }
 
   public void setChildren(List<Node> children) {
+    checkNotFrozen();
     this.children = children;
+    invalidateIndex();
   }
 
   public boolean isLeaf() {
     return children == null || children.isEmpty();
   }
 
+  /**
+   * Returns the parent of the node. The nodes of a {@link TopologySnapshot} have none, as a node
+   * may be shared by several snapshots with different parents, and this method throws
+   * {@link UnsupportedOperationException} for them; ask the snapshot with
+   * {@link TopologySnapshot#getParent(Node)} instead.
+   */
   public Node getParent() {
+    checkHasParent();
     return parent;
   }
 
   public void setParent(Node parent) {
+    checkNotFrozen();
     this.parent = parent;
+    invalidateAncestors();
   }
 
   public Selector getSelector() {
@@ -122,9 +151,103 @@ public class Node implements Comparable<Node> {
   }
 
   public void setSelector(Selector selector) {
+    checkNotFrozen();
     this.selector = selector;
   }
 
+  /**
+   * Returns the subtree index, or null if there is none. Frozen nodes build it on first use; as the
+   * index is immutable, a racy build at worst builds it more than once.
+   */
+  NodeIndex getIndex() {
+    if (index == null && frozen && !isLeaf()) {
+      index = new NodeIndex(this);
+    }
+    return index;
+  }
+
+  void setIndex(NodeIndex index) {
+    this.index = index;
+  }
+
+  Node[] getAncestors() {
+    return ancestors;
+  }
+
+  void setAncestors(Node[] ancestors) {
+    this.ancestors = ancestors;
+  }
+
+  /**
+   * Drops the ancestor tables of this node and its descendants. The crunch builds the tables from
+   * the top down, and stores the tables it computes for the parent chain when it indexes a subtree,
+   * so a node without a table never has descendants with one, and the walk can stop there.
+   */
+  private void invalidateAncestors() {
+    if (ancestors != null) {
+      ancestors = null;
+      if (children != null) {
+        for (Node child: children) {
+          child.invalidateAncestors();
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops the precomputed subtree index of this node and all its ancestors, so that the subtree
+   * queries ({@link #getAllLeafNodes()}, {@link #findChildren(int)}, their views and
+   * {@link #getChildrenCount(int)}) walk the tree again. Setting the children, the type, the name
+   * or the id does this automatically; callers that modify the list of children in place must call
+   * it on the parent.
+   * {@link Crunch#recrunch(Node)} builds the index again.
+   */
+  public void invalidateIndex() {
+    // the index of a frozen node never goes stale, and the ancestors of a frozen node are frozen
+    for (Node node = this; node != null && !node.frozen; node = node.parent) {
+      node.index = null;
+    }
+  }
+
+  public boolean isFrozen() {
+    return frozen;
+  }
+
+  /**
+   * Freezes this node and its whole subtree: the children lists become unmodifiable and all setters
+   * throw {@link UnsupportedOperationException}. Subtrees that are already frozen are skipped.
+   */
+  void freeze() {
+    if (frozen) {
+      return;
+    }
+    if (children != null) {
+      for (Node child: children) {
+        child.freeze();
+      }
+      children = Collections.unmodifiableList(children);
+    }
+    frozen = true;
+  }
+
+  /**
+   * Throws if this is a node of a topology snapshot, which does not know its parent, so that the
+   * parent queries do not silently find no ancestors.
+   */
+  private void checkHasParent() {
+    if (frozen) {
+      throw new UnsupportedOperationException(this + " is part of a topology snapshot and does " +
+          "not know its parent; ask the snapshot instead");
+    }
+  }
+
+  private void checkNotFrozen() {
+    if (frozen) {
+      throw new UnsupportedOperationException(this + " is part of a topology snapshot and cannot " +
+          "be modified");
+    }
+  }
+
   /**
    * Uses the selection algorithm that is assigned to the node and return the selected node.
    */
@@ -134,35 +257,82 @@ public class Node implements Comparable<Node> {
 
   /**
    * Returns all leaf nodes that belong in the tree. Returns itself if this node is a leaf. As with
-   * most other methods in this class, the nodes are added via depth-first traversal.
+   * most other methods in this class, the nodes are added via depth-first traversal. The returned
+   * list is new, and the caller may modify it; see {@link #getLeafView()} for the list without the
+   * copy.
    */
   public List<Node> getAllLeafNodes() {
-    // TODO optimize for performance (cache)
+    NodeIndex index = getIndex();
+    if (index != null) {
+      return new ArrayList<Node>(index.getLeaves());
+    }
+    List<Node> nodes = new ArrayList<Node>();
+    addLeafNodes(nodes);
+    return nodes;
+  }
+
+  /**
+   * Returns the leaf nodes like {@link #getAllLeafNodes()}, as an unmodifiable list. On a crunched
+   * tree this is the list cached by the index, which is not copied per call.
+   */
+  public List<Node> getLeafView() {
+    NodeIndex index = getIndex();
+    if (index != null) {
+      return index.getLeaves();
+    }
     List<Node> nodes = new ArrayList<Node>();
+    addLeafNodes(nodes);
+    return Collections.unmodifiableList(nodes);
+  }
+
+  private void addLeafNodes(List<Node> nodes) {
     if (isLeaf()) {
       nodes.add(this);
     } else {
       for (Node child: children) {
-        nodes.addAll(child.getAllLeafNodes());
+        child.addLeafNodes(nodes);
       }
     }
-    return nodes;
   }
 
   /**
    * Returns all child nodes that match the type. Returns itself if this node matches it. If no
-   * child matches the type, an empty list is returned.
+   * child matches the type, an empty list is returned. The returned list is new, and the caller may
+   * modify it; see {@link #findChildrenView(int)} for the list without the copy.
    */
   public List<Node> findChildren(int type) {
+    NodeIndex index = getIndex();
+    if (index != null) {
+      return new ArrayList<Node>(index.getNodes(type));
+    }
     List<Node> nodes = new ArrayList<Node>();
+    addChildren(type, nodes);
+    return nodes;
+  }
+
+  /**
+   * Returns the child nodes that match the type like {@link #findChildren(int)}, as an
+   * unmodifiable list. On a crunched tree this is the list cached by the index, which is not copied
+   * per call.
+   */
+  public List<Node> findChildrenView(int type) {
+    NodeIndex index = getIndex();
+    if (index != null) {
+      return index.getNodes(type);
+    }
+    List<Node> nodes = new ArrayList<Node>();
+    addChildren(type, nodes);
+    return Collections.unmodifiableList(nodes);
+  }
+
+  private void addChildren(int type, List<Node> nodes) {
     if (this.type == type) {
       nodes.add(this);
     } else if (!isLeaf()) {
       for (Node child: children) {
-        nodes.addAll(child.findChildren(type));
+        child.addChildren(type, nodes);
       }
     }
-    return nodes;
   }
 
   /**
@@ -170,6 +340,10 @@ public class Node implements Comparable<Node> {
    * Returns 0 if no child matches the type.
    */
   public int getChildrenCount(int type) {
+    NodeIndex index = getIndex();
+    if (index != null) {
+      return index.getCount(type);
+    }
     int count = 0;
     if (this.type == type) {
       count++;
@@ -181,11 +355,68 @@ public class Node implements Comparable<Node> {
     return count;
   }
 
+  /**
+   * Returns the node of this subtree (including this node) with the given name, or null if there is
+   * none. On a crunched tree this is a hash lookup.
+   */
+  public Node findNode(String name) {
+    NodeIndex index = getIndex();
+    if (index != null) {
+      return index.getNode(name);
+    }
+    if (name.equals(this.name)) {
+      return this;
+    }
+    if (!isLeaf()) {
+      for (Node child: children) {
+        Node node = child.findNode(name);
+        if (node != null) {
+          return node;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the node of this subtree (including this node) with the given id, or null if there is
+   * none. If several nodes share the id (see {@link Crunch#findIdCollisions(Node)}), the first one
+   * in depth-first order is returned. On a crunched tree this is a hash lookup.
+   */
+  public Node findNodeById(long id) {
+    NodeIndex index = getIndex();
+    if (index != null) {
+      return index.getNode(id);
+    }
+    if (this.id == id) {
+      return this;
+    }
+    if (!isLeaf()) {
+      for (Node child: children) {
+        Node node = child.findNodeById(id);
+        if (node != null) {
+          return node;
+        }
+      }
+    }
+    return null;
+  }
+
   /**
    * Finds a parent that matches the given type. If the node itself matches it, it is returned. If
    * there is no matching parent in the hierarchy, null is returned.
+   * <br/>
+   * On a crunched tree this is a single lookup in the ancestor table of the node. The nodes of a
+   * {@link TopologySnapshot} have no parents (see {@link #getParent()}), and their tables hold
+   * childless handles of the ancestors with their names, types and ids; use
+   * {@link TopologySnapshot#findParent(Node, int)} for the ancestors themselves.
    */
   public Node findParent(int type) {
+    if (ancestors != null) {
+      // the table covers every type on the path to the root
+      return type >= 0 && type < ancestors.length ? ancestors[type] : null;
+    }
+    checkHasParent();
     Node node = this;
     while (node != null) {
       if (node.type == type) {
@@ -196,11 +427,30 @@ public class Node implements Comparable<Node> {
     return null; // no match was found
   }
 
+  /**
+   * Returns whether both nodes belong to the same node of the given type, i.e. whether they both
+   * have a parent of that type (see {@link #findParent(int)}) and the two parents are equal, i.e.
+   * have the same name. This is the check the placement rules use to keep replicas apart. The ids
+   * are not compared, as different names can hash to the same id; the nodes are not compared by
+   * identity either, as the two parents may be copies of the same node, e.g. in the mini-trees of
+   * {@link RDFCRUSHMapping}, or the handles of the ancestors of {@link TopologySnapshot} nodes.
+   */
+  public static boolean sameAncestor(Node a, Node b, int type) {
+    Node parentA = a.findParent(type);
+    if (parentA == null) {
+      return false;
+    }
+    Node parentB = b.findParent(type);
+    return parentB != null && parentA.equals(parentB);
+  }
+
   /**
    * Returns the top-most ("root") node from this node. If this node itself does not have a parent,
-   * returns itself.
+   * returns itself. Like {@link #getParent()}, it throws for the nodes of a
+   * {@link TopologySnapshot}, whose root is {@link TopologySnapshot#getRoot()}.
    */
   public Node getRoot() {
+    checkHasParent();
     Node node = this;
     while (node.parent != null) {
       node = node.parent;
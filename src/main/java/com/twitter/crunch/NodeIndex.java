@@ -0,0 +1,223 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precomputed answers to the subtree queries of a node with children. The number of nodes of each
+ * type (as counted by {@link Node#getChildrenCount(int)}) is computed from the counts of the
+ * children, so the index has to be built bottom-up; {@link Crunch} does so when it crunches or
+ * recrunches a tree. Building it costs O(children * types), not O(subtree).
+ * <br/>
+ * The lists of the leaves and of the nodes of a type (as returned by
+ * {@link Node#findChildren(int)}), both in depth-first order, and the name and id lookups of every
+ * node of the subtree are built on first use, as they are usually only queried on the root or the
+ * data centers. Keeping them at every node would take O(N * depth) memory.
+ */
+final class NodeIndex {
+  private final Node node;
+  // the number of nodes of each type in the subtree, in parallel arrays; there are only a few types
+  private final int[] types;
+  private final int[] counts;
+  // built on first use; the lists and the maps are never modified once they are published
+  private volatile List<Node> leaves;
+  private volatile Map<Integer,List<Node>> byType = Collections.emptyMap();
+  private volatile Map<String,Node> byName;
+  private volatile Map<Long,Node> byId;
+
+  NodeIndex(Node node) {
+    this.node = node;
+    // room for every type of every child, and the type of the node
+    int capacity = 1;
+    for (Node child: node.getChildren()) {
+      if (child.isLeaf()) {
+        capacity++;
+      } else {
+        NodeIndex childIndex = child.getIndex();
+        if (childIndex == null) {
+          throw new IllegalStateException(child + " must be indexed before its parent");
+        }
+        capacity += childIndex.types.length;
+      }
+    }
+    int[] subtreeTypes = new int[capacity];
+    int[] subtreeCounts = new int[capacity];
+    int size = 0;
+    for (Node child: node.getChildren()) {
+      if (child.isLeaf()) {
+        size = add(subtreeTypes, subtreeCounts, size, child.getType(), 1);
+      } else {
+        NodeIndex childIndex = child.getIndex();
+        for (int i = 0; i < childIndex.types.length; i++) {
+          size = add(subtreeTypes, subtreeCounts, size, childIndex.types[i], childIndex.counts[i]);
+        }
+      }
+    }
+    // a match on the node itself hides the matches below it
+    int position = indexOf(subtreeTypes, size, node.getType());
+    if (position < 0) {
+      position = size++;
+      subtreeTypes[position] = node.getType();
+    }
+    subtreeCounts[position] = 1;
+    types = Arrays.copyOf(subtreeTypes, size);
+    counts = Arrays.copyOf(subtreeCounts, size);
+  }
+
+  /**
+   * Adds the count to the type, and returns the new number of types.
+   */
+  private static int add(int[] types, int[] counts, int size, int type, int count) {
+    int position = indexOf(types, size, type);
+    if (position < 0) {
+      types[size] = type;
+      counts[size] = count;
+      return size + 1;
+    }
+    counts[position] += count;
+    return size;
+  }
+
+  private static int indexOf(int[] types, int size, int type) {
+    for (int i = 0; i < size; i++) {
+      if (types[i] == type) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the node of the subtree with the given name, or null if there is none.
+   */
+  Node getNode(String name) {
+    Map<String,Node> names = byName;
+    if (names == null) {
+      names = new HashMap<String,Node>();
+      addNames(node, names);
+      byName = names;
+    }
+    return names.get(name);
+  }
+
+  private static void addNames(Node node, Map<String,Node> names) {
+    names.put(node.getName(), node);
+    if (!node.isLeaf()) {
+      for (Node child: node.getChildren()) {
+        addNames(child, names);
+      }
+    }
+  }
+
+  /**
+   * Returns the node of the subtree with the given id, or null if there is none. If several nodes
+   * share the id, the first one in depth-first order is returned.
+   */
+  Node getNode(long id) {
+    Map<Long,Node> ids = byId;
+    if (ids == null) {
+      ids = new HashMap<Long,Node>();
+      addIds(node, ids);
+      byId = ids;
+    }
+    return ids.get(id);
+  }
+
+  private static void addIds(Node node, Map<Long,Node> ids) {
+    if (!ids.containsKey(node.getId())) {
+      ids.put(node.getId(), node);
+    }
+    if (!node.isLeaf()) {
+      for (Node child: node.getChildren()) {
+        addIds(child, ids);
+      }
+    }
+  }
+
+  /**
+   * Returns the leaves of the subtree. The returned list is unmodifiable.
+   */
+  List<Node> getLeaves() {
+    List<Node> list = leaves;
+    if (list == null) {
+      List<Node> all = new ArrayList<Node>();
+      addLeaves(node, all);
+      list = Collections.unmodifiableList(all);
+      leaves = list;
+    }
+    return list;
+  }
+
+  private static void addLeaves(Node node, List<Node> leaves) {
+    if (node.isLeaf()) {
+      leaves.add(node);
+    } else {
+      for (Node child: node.getChildren()) {
+        addLeaves(child, leaves);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of nodes of the given type.
+   */
+  int getCount(int type) {
+    int position = indexOf(types, types.length, type);
+    return position < 0 ? 0 : counts[position];
+  }
+
+  /**
+   * Returns the nodes of the given type, or an empty list. The returned list is unmodifiable.
+   */
+  List<Node> getNodes(int type) {
+    if (getCount(type) == 0) {
+      return Collections.emptyList();
+    }
+    if (node.getType() == type) {
+      return Collections.singletonList(node);
+    }
+    Map<Integer,List<Node>> lists = byType;
+    List<Node> list = lists.get(type);
+    if (list == null) {
+      List<Node> nodes = new ArrayList<Node>(getCount(type));
+      for (Node child: node.getChildren()) {
+        addNodes(child, type, nodes);
+      }
+      list = Collections.unmodifiableList(nodes);
+      // publish a copy with the new list, so that a published map is never modified
+      Map<Integer,List<Node>> copy = new HashMap<Integer,List<Node>>(lists);
+      copy.put(type, list);
+      byType = copy;
+    }
+    return list;
+  }
+
+  private static void addNodes(Node node, int type, List<Node> nodes) {
+    if (node.getType() == type) {
+      nodes.add(node);
+    } else if (!node.isLeaf()) {
+      for (Node child: node.getChildren()) {
+        addNodes(child, type, nodes);
+      }
+    }
+  }
+}
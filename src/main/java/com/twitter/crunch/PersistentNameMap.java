@@ -0,0 +1,266 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+/**
+ * An immutable map from names to values, as a hash trie with 32-way branching. An update copies
+ * only the trie nodes on the path to the changed entry, O(log32 n) of them, and shares the rest
+ * with the original map, the way {@link TopologySnapshot} shares the unchanged subtrees of a
+ * topology.
+ */
+final class PersistentNameMap<V> {
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+  private static final Branch EMPTY_BRANCH = new Branch(0, new Object[0]);
+  private static final PersistentNameMap<Object> EMPTY =
+      new PersistentNameMap<Object>(EMPTY_BRANCH, 0);
+
+  private final Branch root;
+  private final int size;
+
+  private PersistentNameMap(Branch root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  static <V> PersistentNameMap<V> empty() {
+    return (PersistentNameMap<V>)EMPTY;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the value of the name, or null if the name is not in the map.
+   */
+  @SuppressWarnings("unchecked")
+  V get(String name) {
+    int hash = name.hashCode();
+    Object node = root;
+    for (int shift = 0; node instanceof Branch; shift += BITS) {
+      node = ((Branch)node).slot(hash, shift);
+    }
+    if (node instanceof Entry) {
+      Entry entry = (Entry)node;
+      return entry.name.equals(name) ? (V)entry.value : null;
+    }
+    if (node instanceof Collision) {
+      Entry entry = ((Collision)node).find(name);
+      return entry == null ? null : (V)entry.value;
+    }
+    return null;
+  }
+
+  /**
+   * Returns a map in which the name has the value.
+   */
+  PersistentNameMap<V> put(String name, V value) {
+    int newSize = get(name) == null ? size + 1 : size;
+    return new PersistentNameMap<V>(root.put(0, new Entry(name.hashCode(), name, value)), newSize);
+  }
+
+  /**
+   * Returns a map without the name.
+   */
+  PersistentNameMap<V> remove(String name) {
+    if (get(name) == null) {
+      return this;
+    }
+    Object newRoot = root.remove(0, name.hashCode(), name);
+    // the root stays a branch even when a single entry is left
+    Branch branch = newRoot == null ? EMPTY_BRANCH :
+        newRoot instanceof Branch ? (Branch)newRoot : EMPTY_BRANCH.put(0, newRoot);
+    return new PersistentNameMap<V>(branch, size - 1);
+  }
+
+  private static int hashOf(Object node) {
+    return node instanceof Entry ? ((Entry)node).hash : ((Collision)node).hash;
+  }
+
+  private static final class Entry {
+    final int hash;
+    final String name;
+    final Object value;
+
+    Entry(int hash, String name, Object value) {
+      this.hash = hash;
+      this.name = name;
+      this.value = value;
+    }
+  }
+
+  /**
+   * The entries whose names have the same hash code.
+   */
+  private static final class Collision {
+    final int hash;
+    final Entry[] entries;
+
+    Collision(int hash, Entry[] entries) {
+      this.hash = hash;
+      this.entries = entries;
+    }
+
+    Entry find(String name) {
+      for (Entry entry: entries) {
+        if (entry.name.equals(name)) {
+          return entry;
+        }
+      }
+      return null;
+    }
+
+    Collision put(Entry added) {
+      for (int i = 0; i < entries.length; i++) {
+        if (entries[i].name.equals(added.name)) {
+          Entry[] copy = entries.clone();
+          copy[i] = added;
+          return new Collision(hash, copy);
+        }
+      }
+      Entry[] copy = new Entry[entries.length + 1];
+      System.arraycopy(entries, 0, copy, 0, entries.length);
+      copy[entries.length] = added;
+      return new Collision(hash, copy);
+    }
+
+    Object remove(String name) {
+      for (int i = 0; i < entries.length; i++) {
+        if (entries[i].name.equals(name)) {
+          if (entries.length == 2) {
+            return entries[1 - i];
+          }
+          Entry[] copy = new Entry[entries.length - 1];
+          System.arraycopy(entries, 0, copy, 0, i);
+          System.arraycopy(entries, i + 1, copy, i, copy.length - i);
+          return new Collision(hash, copy);
+        }
+      }
+      return this;
+    }
+  }
+
+  /**
+   * A trie node with a slot per set bit of the bitmap; a slot holds an entry, a collision or a
+   * branch of the next level.
+   */
+  private static final class Branch {
+    final int bitmap;
+    final Object[] slots;
+
+    Branch(int bitmap, Object[] slots) {
+      this.bitmap = bitmap;
+      this.slots = slots;
+    }
+
+    Object slot(int hash, int shift) {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      return (bitmap & bit) == 0 ? null : slots[Integer.bitCount(bitmap & (bit - 1))];
+    }
+
+    /**
+     * Returns the branch with the entry or the collision added at this level.
+     */
+    Branch put(int shift, Object added) {
+      int hash = hashOf(added);
+      int bit = 1 << ((hash >>> shift) & MASK);
+      int position = Integer.bitCount(bitmap & (bit - 1));
+      if ((bitmap & bit) == 0) {
+        Object[] copy = new Object[slots.length + 1];
+        System.arraycopy(slots, 0, copy, 0, position);
+        copy[position] = added;
+        System.arraycopy(slots, position, copy, position + 1, slots.length - position);
+        return new Branch(bitmap | bit, copy);
+      }
+      Object[] copy = slots.clone();
+      copy[position] = merge(shift + BITS, slots[position], added);
+      return new Branch(bitmap, copy);
+    }
+
+    /**
+     * Returns this level without the name, the only entry or collision left in it, or null if it
+     * is empty.
+     */
+    Object remove(int shift, int hash, String name) {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+      int position = Integer.bitCount(bitmap & (bit - 1));
+      Object slot = slots[position];
+      Object replacement;
+      if (slot instanceof Branch) {
+        replacement = ((Branch)slot).remove(shift + BITS, hash, name);
+      } else if (slot instanceof Collision) {
+        replacement = ((Collision)slot).remove(name);
+      } else {
+        replacement = ((Entry)slot).name.equals(name) ? null : slot;
+      }
+      if (replacement == slot) {
+        return this;
+      }
+      if (replacement != null) {
+        Object[] copy = slots.clone();
+        copy[position] = replacement;
+        return collapse(new Branch(bitmap, copy));
+      }
+      if (slots.length == 1) {
+        return null;
+      }
+      Object[] copy = new Object[slots.length - 1];
+      System.arraycopy(slots, 0, copy, 0, position);
+      System.arraycopy(slots, position + 1, copy, position, copy.length - position);
+      return collapse(new Branch(bitmap & ~bit, copy));
+    }
+
+    /**
+     * Returns the only entry or collision of the branch in its place, so that the trie does not
+     * keep chains of single-slot branches.
+     */
+    private static Object collapse(Branch branch) {
+      if (branch.slots.length == 1 && !(branch.slots[0] instanceof Branch)) {
+        return branch.slots[0];
+      }
+      return branch;
+    }
+
+    /**
+     * Returns what is left in a slot of the previous level when the added entry or collision lands
+     * on the existing one.
+     */
+    private static Object merge(int shift, Object existing, Object added) {
+      if (existing instanceof Branch) {
+        return ((Branch)existing).put(shift, added);
+      }
+      int existingHash = hashOf(existing);
+      if (existingHash == hashOf(added)) {
+        // the added node is always an entry: collisions are only moved, never added
+        Entry entry = (Entry)added;
+        if (existing instanceof Collision) {
+          return ((Collision)existing).put(entry);
+        }
+        Entry old = (Entry)existing;
+        if (old.name.equals(entry.name)) {
+          return entry;
+        }
+        return new Collision(existingHash, new Entry[] {old, entry});
+      }
+      return EMPTY_BRANCH.put(shift, existing).put(shift, added);
+    }
+  }
+}
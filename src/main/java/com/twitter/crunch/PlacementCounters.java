@@ -0,0 +1,93 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how often the limits of the {@link PlacementTunables} were hit. The counters are only
+ * updated when a limit is hit, so they cost nothing on the common path, and they are safe to update
+ * and read from multiple threads.
+ */
+public final class PlacementCounters {
+  private final AtomicLong loopbackLimitHits = new AtomicLong();
+  private final AtomicLong localRetryLimitHits = new AtomicLong();
+  private final AtomicLong retryBudgetHits = new AtomicLong();
+  private final AtomicLong convergenceLimitHits = new AtomicLong();
+
+  /**
+   * Returns the number of replicas (or indep positions) that were given up after looping back to
+   * the origin as many times as the loopback limit allows.
+   */
+  public long getLoopbackLimitHits() {
+    return loopbackLimitHits.get();
+  }
+
+  /**
+   * Returns the number of times the selection looped back to the origin because it retried on the
+   * same parent as many times as the local retry limit allows.
+   */
+  public long getLocalRetryLimitHits() {
+    return localRetryLimitHits.get();
+  }
+
+  /**
+   * Returns the number of select calls that were cut short by the retry budget.
+   */
+  public long getRetryBudgetHits() {
+    return retryBudgetHits.get();
+  }
+
+  /**
+   * Returns the number of rule selections that gave up after the convergence limit.
+   */
+  public long getConvergenceLimitHits() {
+    return convergenceLimitHits.get();
+  }
+
+  /**
+   * Sets all counters back to zero.
+   */
+  public void reset() {
+    loopbackLimitHits.set(0);
+    localRetryLimitHits.set(0);
+    retryBudgetHits.set(0);
+    convergenceLimitHits.set(0);
+  }
+
+  void countLoopbackLimitHits(int hits) {
+    loopbackLimitHits.addAndGet(hits);
+  }
+
+  void countLocalRetryLimitHit() {
+    localRetryLimitHits.incrementAndGet();
+  }
+
+  void countRetryBudgetHit() {
+    retryBudgetHits.incrementAndGet();
+  }
+
+  void countConvergenceLimitHit() {
+    convergenceLimitHits.incrementAndGet();
+  }
+
+  @Override
+  public String toString() {
+    return "PlacementCounters[loopbackLimitHits=" + getLoopbackLimitHits() +
+        ", localRetryLimitHits=" + getLocalRetryLimitHits() + ", retryBudgetHits=" +
+        getRetryBudgetHits() + ", convergenceLimitHits=" + getConvergenceLimitHits() + "]";
+  }
+}
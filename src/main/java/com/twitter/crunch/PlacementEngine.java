@@ -0,0 +1,97 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.List;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
+/**
+ * A placement engine for concurrent lookups: the CRUSH placement on an immutable
+ * {@link TopologySnapshot}, without the round offset and without assignment tracking. Neither the
+ * engine nor the topology change after it is created, so any number of threads can select on one
+ * instance at the same time without locking, and the same input always gives the same nodes.
+ * <br/>
+ * To follow topology changes, derive a new snapshot and create a new engine on it; threads that
+ * still use the old engine keep getting the old placements.
+ */
+public final class PlacementEngine {
+  private final TopologySnapshot snapshot;
+  // stateless without the round offset and the assignment tracker
+  private final CRUSHPlacementAlgorithm pa;
+
+  public PlacementEngine(TopologySnapshot snapshot) {
+    this(snapshot, new PlacementTunables());
+  }
+
+  /**
+   * Creates the engine with the given retry limits. A retry budget bounds the time of every lookup,
+   * at the cost of returning fewer nodes for the inputs that exceed it.
+   */
+  public PlacementEngine(TopologySnapshot snapshot, PlacementTunables tunables) {
+    this.snapshot = snapshot;
+    pa = new CRUSHPlacementAlgorithm(tunables);
+  }
+
+  public TopologySnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Returns the retry limits of the engine, and with them the counters of the limits hit by all of
+   * its lookups.
+   */
+  public PlacementTunables getTunables() {
+    return pa.getTunables();
+  }
+
+  /**
+   * Returns (count) nodes of the desired type for the input. See
+   * {@link CRUSHPlacementAlgorithm#select(Node, long, int, int)}.
+   */
+  public List<Node> select(long input, int count, int type) {
+    return pa.select(snapshot.getRoot(), input, count, type);
+  }
+
+  /**
+   * Returns (count) nodes of the desired type that pass the predicate for the input. The predicate
+   * is called from the selecting thread.
+   */
+  public List<Node> select(long input, int count, int type, Predicate<Node> predicate) {
+    return pa.select(snapshot.getRoot(), input, count, type, predicate);
+  }
+
+  /**
+   * Writes (count) nodes of the desired type for the input to the output array, without
+   * allocating. See {@link CRUSHPlacementAlgorithm#select(Node, long, int, int, Predicate, Node[])}.
+   *
+   * @return the number of selected nodes
+   */
+  public int select(long input, int count, int type, Node[] selected) {
+    return pa.select(snapshot.getRoot(), input, count, type, Predicates.<Node>alwaysTrue(),
+        selected);
+  }
+
+  /**
+   * Selects (count) nodes of the desired type for each of the inputs, and writes them to a matrix
+   * with a row of (count) nodes per input. See
+   * {@link CRUSHPlacementAlgorithm#select(Node, long[], int, int, Node[], int[])}.
+   */
+  public void select(long[] inputs, int count, int type, Node[] selected, int[] selectedCounts) {
+    pa.select(snapshot.getRoot(), inputs, count, type, selected, selectedCounts);
+  }
+}
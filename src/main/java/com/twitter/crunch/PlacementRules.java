@@ -24,6 +24,17 @@ import java.util.List;
  * specific data, the top node from which the selection begins, or the placement algorithm.
  */
 public interface PlacementRules {
+  /**
+   * How the rules select their end nodes. In the FIRSTN mode, the selected nodes are a list, and a
+   * node that cannot be used shifts the nodes after it. In the INDEP mode, every node has a stable
+   * position, a node that cannot be used only changes its own position, and a position that cannot
+   * be filled is a null hole; this is what erasure-coded placements need.
+   */
+  enum Mode {
+    FIRSTN,
+    INDEP
+  }
+
   /**
    * Describes how a number of end nodes should be selected from the top node.
    */
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+/**
+ * The retry limits of the CRUSH placement, in the spirit of the choose_total_tries and
+ * choose_local_tries tunables of CRUSH:
+ * <ul>
+ * <li>the loopback limit is how many times the selection of one replica loops back to the origin
+ * before the replica is given up;</li>
+ * <li>the local retry limit is how many times the selection retries on the same parent after a
+ * collision or a rejection before it loops back to the origin;</li>
+ * <li>the retry budget is how many failed selections one select call may make over all of its
+ * replicas; once it is spent, the call returns what it has selected so far, which bounds the
+ * worst-case time of a call regardless of the other limits;</li>
+ * <li>the convergence limit is how many times the placement rules retry with a rehashed input
+ * before they give up.</li>
+ * </ul>
+ * The defaults are the limits the placement always had, and select the same nodes.
+ * <br/>
+ * The tunables are immutable, and come with the {@link PlacementCounters} of how often each limit
+ * was hit by the placements using them. They can be shared by placement algorithms on multiple
+ * threads, whose hits then add up in the same counters.
+ */
+public final class PlacementTunables {
+  /**
+   * Denotes a limit that is never hit.
+   */
+  public static final int UNLIMITED = Integer.MAX_VALUE;
+  /**
+   * It is expected that in most cases the selection will either succeed with a small number of
+   * tries, or it will never succeed. So a reasonably large number to distinguish these two cases
+   * should be sufficient.
+   */
+  public static final int DEFAULT_LOOPBACK_LIMIT = 50;
+  public static final int DEFAULT_LOCAL_RETRY_LIMIT = UNLIMITED;
+  public static final int DEFAULT_RETRY_BUDGET = UNLIMITED;
+  /**
+   * Retrying with a rehashed input should converge pretty rapidly under normal circumstances.
+   */
+  public static final int DEFAULT_CONVERGENCE_LIMIT = 20;
+
+  private final int loopbackLimit;
+  private final int localRetryLimit;
+  private final int retryBudget;
+  private final int convergenceLimit;
+  private final PlacementCounters counters = new PlacementCounters();
+
+  /**
+   * Creates the tunables with the default limits.
+   */
+  public PlacementTunables() {
+    this(DEFAULT_LOOPBACK_LIMIT, DEFAULT_LOCAL_RETRY_LIMIT, DEFAULT_RETRY_BUDGET,
+        DEFAULT_CONVERGENCE_LIMIT);
+  }
+
+  public PlacementTunables(int loopbackLimit, int localRetryLimit, int retryBudget,
+      int convergenceLimit) {
+    if (loopbackLimit < 0 || localRetryLimit < 0 || retryBudget < 0) {
+      throw new IllegalArgumentException("the retry limits must not be negative");
+    }
+    if (convergenceLimit < 1) {
+      throw new IllegalArgumentException("the convergence limit must be positive");
+    }
+    this.loopbackLimit = loopbackLimit;
+    this.localRetryLimit = localRetryLimit;
+    this.retryBudget = retryBudget;
+    this.convergenceLimit = convergenceLimit;
+  }
+
+  public int getLoopbackLimit() {
+    return loopbackLimit;
+  }
+
+  public int getLocalRetryLimit() {
+    return localRetryLimit;
+  }
+
+  public int getRetryBudget() {
+    return retryBudget;
+  }
+
+  public int getConvergenceLimit() {
+    return convergenceLimit;
+  }
+
+  public PlacementCounters getCounters() {
+    return counters;
+  }
+
+  @Override
+  public String toString() {
+    return "PlacementTunables[loopbackLimit=" + loopbackLimit + ", localRetryLimit=" +
+        localRetryLimit + ", retryBudget=" + retryBudget + ", convergenceLimit=" +
+        convergenceLimit + "]";
+  }
+}
@@ -64,7 +64,7 @@ public class ProbingRDFMapping implements MappingFunction {
     }
 
     private void adjustWeight(Node topology, Map<String, Long> distribution, Map<String, Long> weight, double weightBalanceFactor) {
-        final List<Node> allLeaves = topology.getAllLeafNodes();
+        final List<Node> allLeaves = topology.getLeafView();
         long totalWeight = 0;
         long totalItem = 0;
 
@@ -140,7 +140,7 @@ public class ProbingRDFMapping implements MappingFunction {
     }
 
     private Map<Node,List<Node>> optimizeRDFMapping(Node topology) throws MappingException {
-        final List<Node> allLeaves = topology.getAllLeafNodes();
+        final List<Node> allLeaves = topology.getLeafView();
         Map<String, Long> definedWeight = new HashMap<String, Long>();
         int bestTries = 0;
 
@@ -179,7 +179,7 @@ public class ProbingRDFMapping implements MappingFunction {
     }
 
     private Map<Node,List<Node>> optimizeRDFMappingWithThreshold(Node topology) throws MappingException {
-        final List<Node> allLeaves = topology.getAllLeafNodes();
+        final List<Node> allLeaves = topology.getLeafView();
         Map<String, Long> definedWeight = new HashMap<String, Long>();
 
         for (Node node : allLeaves) {
@@ -21,16 +21,23 @@ public class RDFCRUSHMapping {
     private final int rf;
     private final PlacementRules rules;
     private final double targetBalance;
+    private final PlacementTunables tunables;
 
     private final Crunch cruncher = new Crunch();
 
     public RDFCRUSHMapping(int rf, PlacementRules rules, double targetBalance) {
+        this(rf, rules, targetBalance, new PlacementTunables());
+    }
+
+    public RDFCRUSHMapping(int rf, PlacementRules rules, double targetBalance,
+                           PlacementTunables tunables) {
         if (rf < 1) {
             throw new IllegalArgumentException("RF must be positive");
         }
         this.rf = rf;
         this.rules = rules;
         this.targetBalance = targetBalance;
+        this.tunables = tunables;
     }
 
     /**
@@ -47,14 +54,37 @@ public class RDFCRUSHMapping {
         // we create mini-trees to select the replicas; instead of creating the mini-trees every time,
         // we cache the result
         Map<Node,Node> miniTreeCache = new HashMap<Node,Node>();
-        List<Node> datacenters = crunchedRoot.findChildren(Types.DATA_CENTER);
+        List<Node> datacenters = crunchedRoot.findChildrenView(Types.DATA_CENTER);
         // iterate on all datacenters
         for (Node datacenter: datacenters) {
             AssignmentTracker tracker = AssignmentTrackerFactory.create(datacenter, rf*sorted.size(), targetBalance);
-            PlacementAlgorithm pa = new CRUSHPlacementAlgorithm(tracker);
+            CRUSHPlacementAlgorithm pa = new CRUSHPlacementAlgorithm(false, tracker, tunables);
+            // without tracking, the selections do not depend on each other, and the primaries can
+            // be selected for all data in one batch
+            Node[] primaries = null;
+            if (tracker instanceof NoOpAssignmentTracker) {
+                long[] inputs = new long[sorted.size()];
+                for (int i = 0; i < inputs.length; i++) {
+                    inputs[i] = sorted.get(i);
+                }
+                primaries = new Node[inputs.length];
+                pa.select(datacenter, inputs, 1, rules.getEndNodeType(), primaries,
+                        new int[inputs.length]);
+            }
 
-            for (Long l: sorted) { // ~ N
-                List<Node> selected = pickNodes(l, datacenter, pa, rdfMap, miniTreeCache);
+            for (int i = 0; i < sorted.size(); i++) { // ~ N
+                Long l = sorted.get(i);
+                Node primary;
+                if (primaries == null) {
+                    List<Node> candidates = pa.select(datacenter, l, 1, rules.getEndNodeType());
+                    primary = candidates.isEmpty() ? null : candidates.get(0);
+                } else {
+                    primary = primaries[i];
+                }
+                if (primary == null) {
+                    throw new MappingException("no primary node could be selected for data " + l);
+                }
+                List<Node> selected = pickNodes(l, primary, pa, rdfMap, miniTreeCache);
                 List<Node> nodes = map.get(l);
                 if (nodes == null) {
                     nodes = new ArrayList<Node>(rf*datacenters.size());
@@ -66,11 +96,9 @@ public class RDFCRUSHMapping {
         return map;
     }
 
-    private List<Node> pickNodes(long data, Node datacenter, PlacementAlgorithm pa,
+    private List<Node> pickNodes(long data, Node primary, PlacementAlgorithm pa,
                                  Map<Node,List<Node>> rdfMap, Map<Node,Node> miniTreeCache) {
         List<Node> nodes = new ArrayList<Node>(rf);
-        // get the primary node
-        Node primary = pa.select(datacenter, data, 1, rules.getEndNodeType()).get(0);
         nodes.add(primary);
 
         // obtain the "mini-tree"
@@ -90,8 +118,9 @@ public class RDFCRUSHMapping {
     }
 
     private Node makeMiniTree(List<Node> nodes) {
-        // this is used to look up parents nodes that are already created
-        Map<Long,Node> lookup = new HashMap<Long,Node>();
+        // this is used to look up parents nodes that are already created; the names are unique,
+        // while the ids may collide
+        Map<String,Node> lookup = new HashMap<String,Node>();
         Node root = null;
         for (Node node: nodes) { // ~ RDF
             // create a copy for this purpose
@@ -107,7 +136,7 @@ public class RDFCRUSHMapping {
     /**
      * Recursively handles all the parents. Returns the root node as a result.
      */
-    private Node handleParent(Node node, Node newNode, Map<Long,Node> lookup) {
+    private Node handleParent(Node node, Node newNode, Map<String,Node> lookup) {
         Node parent = node.getParent();
         if (parent == null) {
             // root node: return it
@@ -115,7 +144,7 @@ public class RDFCRUSHMapping {
         }
 
         // process the parent
-        Node newParent = lookup.get(parent.getId());
+        Node newParent = lookup.get(parent.getName());
         if (newParent != null) { // it is already mapped
             // set the relationship
             setRelationship(newNode, newParent);
@@ -127,7 +156,7 @@ public class RDFCRUSHMapping {
             // create a copy
             newParent = new Node(parent);
             // add it to the lookup map
-            lookup.put(newParent.getId(), newParent);
+            lookup.put(newParent.getName(), newParent);
             // set the relationship
             setRelationship(newNode, newParent);
             // recurse for its parent
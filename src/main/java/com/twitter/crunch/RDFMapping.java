@@ -42,6 +42,7 @@ public class RDFMapping implements MappingFunction {
   private final boolean bidirectional;
   private final boolean handleOverload;
   private final double targetBalance;
+  private final PlacementTunables tunables;
 
   private final Crunch cruncher = new Crunch();
 
@@ -59,8 +60,22 @@ public class RDFMapping implements MappingFunction {
     this(rdf, rf, rules, bidirectional, false, 0.0d); // overload handling is off by default
   }
 
+  /**
+   * Creates the mapping whose placements retry within the given limits. Its counters show how often
+   * the limits were hit by the RDF mapping and the data mapping.
+   */
+  public RDFMapping(int rdf, int rf, PlacementRules rules, double targetBalance,
+      PlacementTunables tunables) {
+    this(rdf, rf, rules, false, false, targetBalance, tunables);
+  }
+
   private RDFMapping(int rdf, int rf, PlacementRules rules, boolean bidirectional,
       boolean handleOverload, double targetBalance) {
+    this(rdf, rf, rules, bidirectional, handleOverload, targetBalance, new PlacementTunables());
+  }
+
+  private RDFMapping(int rdf, int rf, PlacementRules rules, boolean bidirectional,
+      boolean handleOverload, double targetBalance, PlacementTunables tunables) {
     if (rf < 1) {
       throw new IllegalArgumentException("RF must be positive");
     }
@@ -73,6 +88,7 @@ public class RDFMapping implements MappingFunction {
     this.bidirectional = bidirectional;
     this.handleOverload = handleOverload;
     this.targetBalance = targetBalance;
+    this.tunables = tunables;
   }
 
   /**
@@ -86,7 +102,7 @@ public class RDFMapping implements MappingFunction {
     long end = System.nanoTime();
     logger.info("time taken to create the RDF mapping: {} ms", (end-begin)/1000000L);
     begin = System.nanoTime();
-    RDFCRUSHMapping crushMapping = new RDFCRUSHMapping(rf, rules, targetBalance);
+    RDFCRUSHMapping crushMapping = new RDFCRUSHMapping(rf, rules, targetBalance, tunables);
     Map<Long,List<Node>> map = crushMapping.createMapping(data, crunched, rdfMap);
     end = System.nanoTime();
     logger.info("time taken to create mapping: {} ms", (end-begin)/1000000L);
@@ -100,10 +116,14 @@ public class RDFMapping implements MappingFunction {
    */
   public Map<Node,List<Node>> createRDFMapping(Node crunchedRoot) {
     // iterate on all datacenters
-    List<Node> datacenters = crunchedRoot.findChildren(Types.DATA_CENTER);
-    Map<Node,List<Node>> map = new HashMap<Node,List<Node>>(crunchedRoot.getAllLeafNodes().size());
+    List<Node> datacenters = crunchedRoot.findChildrenView(Types.DATA_CENTER);
+    Map<Node,List<Node>> map = new HashMap<Node,List<Node>>(crunchedRoot.getLeafView().size());
+    // use a placement algorithm object for this run and keep track of successive rounds; it is
+    // reset for each datacenter
+    CRUSHPlacementAlgorithm pa = new CRUSHPlacementAlgorithm(true, null, tunables);
     for (Node datacenter: datacenters) {
-      createRDFMappingPerDC(datacenter, map);
+      pa.resetOffsets();
+      createRDFMappingPerDC(datacenter, pa, map);
     }
     return map;
   }
@@ -122,14 +142,12 @@ public class RDFMapping implements MappingFunction {
     return map;
   }
 
-  private Map<Node,List<Node>> createRDFMappingPerDC(Node datacenter, Map<Node,List<Node>> map) {
-    final List<Node> allLeaves = datacenter.getAllLeafNodes();
+  private Map<Node,List<Node>> createRDFMappingPerDC(Node datacenter, PlacementAlgorithm pa,
+      Map<Node,List<Node>> map) {
+    final List<Node> allLeaves = datacenter.getLeafView();
     final int endNodeSize = allLeaves.size();
     final int totalMapping = endNodeSize*(rdf-1);
 
-    // use a placement algorithm object for this run and keep track of successive rounds
-    PlacementAlgorithm pa = new CRUSHPlacementAlgorithm(true);
-
     // create the quota so we avoid overloading nodes
     Map<Node,Integer> quota = handleOverload ? createQuota(allLeaves) : null;
     int mapped = 0;
@@ -27,6 +27,12 @@ package com.twitter.crunch;
  */
 public class RackIsolationPlacementRules extends BaseRackIsolationPlacementRules
     implements StorageSystemTypes {
+  public RackIsolationPlacementRules() {}
+
+  public RackIsolationPlacementRules(Mode mode) {
+    super(mode);
+  }
+
   public int getEndNodeType() {
     return DISK;
   }
@@ -16,47 +16,98 @@
 package com.twitter.crunch;
 
 import java.util.List;
-import java.util.Random;
 
 /**
- * Implementation of deterministic-but-random selection: identical series of calls will result
- * in identical selections. This is strictly for test purposes, and should not be used for any
- * real selection.
+ * Implementation of weighted random selection with an alias table (Vose's method). The table is
+ * built once, and a selection hashes the input, the round and the node id to pick a column and
+ * flip its biased coin, so it is O(1), deterministic per input and round, and the selector holds
+ * no mutable state.
+ * <br/>
+ * The columns are rebuilt from scratch when the children change, so adding or removing a child
+ * moves a lot of the data; this is not meant for placement that needs stability.
  */
-class RandomSelector implements Selector {
-  private final Random rng = new Random(42);
-  private final Node node;
+class RandomSelector implements IndexedSelector {
+  private static final MultiInputHash hashFunction = new JenkinsHash();
+  // probabilities are scaled to 32 bits; a column with this threshold never takes its alias
+  private static final long ALWAYS = 1L << 32;
+  // mixed into the node id for the coin, so that its hash differs from the one of the column even
+  // when the arguments coincide
+  private static final long COIN_SALT = 0x5bd1e995L;
+
+  private final Node[] nodes;
+  private final long id;
+  private final long[] thresholds;
+  private final int[] aliases;
 
   public RandomSelector(Node node) {
     if (node.isLeaf()) {
       throw new IllegalArgumentException("count is larger than the number of nodes!");
     }
-    this.node = node;
-  }
-
-  public Node select(long input, long round) {
     List<Node> children = node.getChildren();
     final int length = children.size();
-    if (length == 1) {
-      return children.get(0);
-    }
+    nodes = children.toArray(new Node[length]);
+    id = node.getId();
+    thresholds = new long[length];
+    aliases = new int[length];
 
     // compute the sum of weights
-    int totalWeight = 0;
-    for (Node n: children) {
+    long totalWeight = 0;
+    for (Node n: nodes) {
       totalWeight += n.getWeight();
     }
-    // random number
-    int draw = rng.nextInt(totalWeight);
-    // pick a node based on the random number
-    int sum = 0;
-    for (Node n: children) {
-      sum += n.getWeight();
-      if (draw < sum) {
-        // have a match: make a copy
-        return n;
+    // scale the probabilities so that the average column holds exactly 1
+    double[] scaled = new double[length];
+    for (int i = 0; i < length; i++) {
+      scaled[i] = totalWeight == 0 ? 1.0d : ((double)nodes[i].getWeight())*length/totalWeight;
+    }
+    // work lists of the columns below and above 1, kept as stacks
+    int[] small = new int[length];
+    int[] large = new int[length];
+    int smallCount = 0;
+    int largeCount = 0;
+    for (int i = 0; i < length; i++) {
+      if (scaled[i] < 1.0d) {
+        small[smallCount++] = i;
+      } else {
+        large[largeCount++] = i;
+      }
+    }
+    while (smallCount > 0 && largeCount > 0) {
+      int less = small[--smallCount];
+      int more = large[--largeCount];
+      // the remainder of the small column is filled by the large one
+      thresholds[less] = (long)(scaled[less]*ALWAYS);
+      aliases[less] = more;
+      scaled[more] = (scaled[more] + scaled[less]) - 1.0d;
+      if (scaled[more] < 1.0d) {
+        small[smallCount++] = more;
+      } else {
+        large[largeCount++] = more;
       }
     }
-    return null;
+    // whatever is left is 1 up to rounding errors
+    while (largeCount > 0) {
+      int more = large[--largeCount];
+      thresholds[more] = ALWAYS;
+      aliases[more] = more;
+    }
+    while (smallCount > 0) {
+      int less = small[--smallCount];
+      thresholds[less] = ALWAYS;
+      aliases[less] = less;
+    }
+  }
+
+  public Node select(long input, long round) {
+    return nodes[selectIndex(input, round)];
+  }
+
+  public int selectIndex(long input, long round) {
+    // the high half of hash*length picks the column
+    int column = (int)((hashFunction.hash(input, id, round)*nodes.length) >>> 32);
+    // the 32 bits of the coin come from a second hash with the arguments in another order: the
+    // low half of hash*length ends in zeros when the length is a power of two
+    long coin = hashFunction.hash(round, input, id ^ COIN_SALT);
+    return coin < thresholds[column] ? column : aliases[column];
   }
 }
@@ -48,7 +48,7 @@ public class SimpleCRUSHMapping implements MappingFunction {
     Node crunch = new Crunch().makeCrunch(topology);
     Map<Long,List<Node>> map = new HashMap<Long,List<Node>>(sorted.size());
     // iterate over datacenters
-    List<Node> datacenters = crunch.findChildren(Types.DATA_CENTER);
+    List<Node> datacenters = crunch.findChildrenView(Types.DATA_CENTER);
     for (Node datacenter: datacenters) {
       AssignmentTracker tracker =
           AssignmentTrackerFactory.create(datacenter, rf*sorted.size(), targetBalance);
@@ -187,7 +187,7 @@ public class StableRdfMapping implements MappingFunction {
   }
 
   private void buildRDFMapping(Node datacenter, Map<Node, List<Node>> mapping) throws MappingException {
-    final List<Node> allNodes = datacenter.getAllLeafNodes();
+    final List<Node> allNodes = datacenter.getLeafView();
 
     initializeCapcity(allNodes, mapping);
 
@@ -258,24 +258,20 @@ public class StableRdfMapping implements MappingFunction {
   private Map<Node,List<Node>> optimizeRDFMapping(Node topology) throws MappingException {
     Map<Node, List<Node>> mapping = new TreeMap<Node, List<Node>>();
 
-    for(Node datacenter : topology.findChildren(Types.DATA_CENTER)) {
-      final List<Node> allNodes = datacenter.getAllLeafNodes();
+    for(Node datacenter : topology.findChildrenView(Types.DATA_CENTER)) {
+      final List<Node> allNodes = datacenter.getLeafView();
 
       Map<Node, List<Node>> dcMapping = new TreeMap<Node, List<Node>>();
 
       // Remove dead nodes
       for(String nodeName: this.oldRdfMap.keySet()) {
-        Node node = new Node();
-        node.setName(nodeName);
-        if (allNodes.contains(node)) {
-          node = allNodes.get(allNodes.indexOf(node));
+        Node node = datacenter.findNode(nodeName);
+        if (node != null && node.isLeaf()) {
           if (node.isFailed() || node.getWeight() <= 0) continue;
           List<Node> replicas = new ArrayList<Node>();
           for (String replicaName: this.oldRdfMap.get(nodeName)) {
-            Node replica = new Node();
-            replica.setName(replicaName);
-            if (allNodes.contains(replica)) {
-              replica = allNodes.get(allNodes.indexOf(replica));
+            Node replica = datacenter.findNode(replicaName);
+            if (replica != null && replica.isLeaf()) {
               if (replica.isFailed() || replica.getWeight() <= 0) continue;
               replicas.add(replica);
             }
@@ -333,7 +329,10 @@ public class StableRdfMapping implements MappingFunction {
         child = parent;
         parent = parent.getParent();
       }
-      if (parent != null) parent.getChildren().remove(child);
+      if (parent != null) {
+        // recomputes the weights and selectors of the ancestors only
+        cruncher.removeNode(child);
+      }
     }
   }
 
@@ -346,7 +345,6 @@ public class StableRdfMapping implements MappingFunction {
     logger.info("time taken to create the RDF mapping: {} ms", (end - begin)/1000000L);
 
     removeNodes(crunched);
-    crunched = cruncher.makeCrunch(crunched);
 
     begin = System.nanoTime();
     Map<Long,List<Node>> map = optimizeTargetBalance(data, crunched);
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.List;
+
+/**
+ * Selection algorithm based on the "straw2" bucket type of CRUSH. Every child draws a straw whose
+ * length is ln(u)/weight for a hashed u in (0, 1], and the longest straw wins. Unlike the original
+ * straw bucket, a child's draw depends only on its own weight, so changing the weight of one child
+ * only moves data to or from that child.
+ * <br/>
+ * The logarithm is computed in fixed point with lookup tables as in CRUSH, so selection uses only
+ * integer arithmetic.
+ */
+class Straw2Selector implements IndexedSelector {
+  private static final MultiInputHash hashFunction = new JenkinsHash();
+  // crushLn(0xffff), i.e. ln(1) in the fixed point scale
+  private static final long LN_ONE = 0x1000000000000L;
+  /**
+   * Interleaved table of 2^48/(1 + k/128) and 2^48*log2(1 + k/128) for k = 0..128.
+   */
+  private static final long[] RH_LH = new long[2*129];
+  /**
+   * Table of 2^48*log2(1 + k/2^15) for k = 0..255.
+   */
+  private static final long[] LL = new long[256];
+
+  static {
+    final double scale = (double)(1L << 48);
+    final double ln2 = StrictMath.log(2.0d);
+    for (int k = 0; k <= 128; k++) {
+      // rounded up so that RH*x never falls just short of 2^63 for x a multiple of 256
+      RH_LH[2*k] = ((1L << 55) + 127 + k)/(128 + k);
+      RH_LH[2*k + 1] = Math.round(scale*StrictMath.log((128.0d + k)/128)/ln2);
+    }
+    for (int k = 0; k < LL.length; k++) {
+      LL[k] = Math.round(scale*StrictMath.log(1.0d + k/32768.0d)/ln2);
+    }
+  }
+
+  private final Node[] nodes;
+  private final long[] ids;
+  private final long[] weights;
+
+  public Straw2Selector(Node node) {
+    List<Node> children = node.getChildren();
+    final int size = node.isLeaf() ? 0 : children.size();
+    nodes = new Node[size];
+    ids = new long[size];
+    weights = new long[size];
+    for (int i = 0; i < size; i++) {
+      Node child = children.get(i);
+      nodes[i] = child;
+      ids[i] = child.getId();
+      weights[i] = child.getWeight();
+    }
+  }
+
+  public Node select(long input, long round) {
+    return nodes[selectIndex(input, round)];
+  }
+
+  public int selectIndex(long input, long round) {
+    if (nodes.length == 0) {
+      throw new IllegalStateException();
+    }
+    long[] hashes = StrawSelector.getHashBuffer(ids.length);
+    StrawSelector.hashAll(hashFunction, input, ids, round, hashes);
+    int selected = 0;
+    long hiDraw = 0;
+    for (int i = 0; i < nodes.length; i++) {
+      long draw;
+      if (weights[i] == 0) {
+        draw = Long.MIN_VALUE;
+      } else {
+        // ln(u) is not positive, so the draw is larger (closer to zero) for heavier children
+        draw = (crushLn((int)(hashes[i]&0xffff)) - LN_ONE)/weights[i];
+      }
+      if (i == 0 || draw > hiDraw) {
+        selected = i;
+        hiDraw = draw;
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Returns 2^44*log2(x + 1) for x in [0, 0xffff] in fixed point.
+   */
+  static long crushLn(int xin) {
+    int x = xin + 1;
+
+    // normalize the input so that the top bit is bit 15
+    int iexpon = 15;
+    if ((x & 0x18000) == 0) {
+      int bits = Integer.numberOfLeadingZeros(x & 0x1FFFF) - 16;
+      x <<= bits;
+      iexpon = 15 - bits;
+    }
+
+    int index1 = (x >> 8) << 1;
+    // RH ~ 2^56/index1
+    long rh = RH_LH[index1 - 256];
+    // LH ~ 2^48*log2(index1/256)
+    long lh = RH_LH[index1 + 1 - 256];
+
+    // RH*x ~ 2^48*(2^15 + xf), xf < 2^8
+    long xl64 = (x*rh) >>> 48;
+
+    long result = ((long)iexpon) << (12 + 32);
+
+    int index2 = (int)(xl64 & 0xff);
+    // LL ~ 2^48*log2(1.0 + index2/2^15)
+    long ll = LL[index2];
+
+    lh = lh + ll;
+    lh >>>= (48 - 12 - 32);
+    result += lh;
+    return result;
+  }
+}
@@ -19,60 +19,107 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Selection algorithm based on the "straw" bucket type as described in the CRUSH algorithm.
  */
-class StrawSelector implements Selector {
-  private final Map<Node,Long> straws = new HashMap<Node,Long>();
-  private final MultiInputHash hashFunction;
+class StrawSelector implements IndexedSelector {
+  /**
+   * Per-thread buffer that receives the child hashes during selection. It is grown as needed and
+   * shared by all straw and straw2 selectors, so selection does not allocate.
+   */
+  private static final ThreadLocal<long[]> hashBuffer = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[16];
+    }
+  };
+
+  private static final MultiInputHash hashFunction = new JenkinsHash();
+
+  // the straw table: children, their positions among the children, their ids, and their straw
+  // lengths in parallel arrays
+  private final Node[] nodes;
+  private final int[] indexes;
+  private final long[] ids;
+  private final long[] straws;
 
   public StrawSelector(Node node) {
+    Map<Node,Long> strawMap = node.isLeaf() ?
+        Collections.<Node,Long>emptyMap() : computeStraws(node.getChildren());
+
+    // flatten the straws into the table; the first child with the highest score wins a tie, so the
+    // table keeps the map's iteration order to select exactly as the map-based selector did
+    final int size = strawMap.size();
+    nodes = new Node[size];
+    indexes = new int[size];
+    ids = new long[size];
+    straws = new long[size];
+    Map<Node,Integer> positions = new IdentityHashMap<Node,Integer>();
     if (!node.isLeaf()) {
-      // create a map from the nodes to their values
-      List<Node> sortedNodes = sortNodes(node.getChildren()); // do a reverse sort by weight
-
-      int numLeft = sortedNodes.size();
-      float straw = 1.0f;
-      float wbelow = 0.0f;
-      float lastw = 0.0f;
-      int i = 0;
-      final int length = sortedNodes.size();
-      while (i < length) {
-        Node current = sortedNodes.get(i);
-        if (current.getWeight() == 0) {
-          straws.put(current, 0L);
-          i++;
-          continue;
-        }
-        straws.put(current, (long)(straw*0x10000));
+      List<Node> children = node.getChildren();
+      for (int i = 0; i < children.size(); i++) {
+        positions.put(children.get(i), i);
+      }
+    }
+    int index = 0;
+    for (Map.Entry<Node,Long> e: strawMap.entrySet()) {
+      nodes[index] = e.getKey();
+      indexes[index] = positions.get(e.getKey());
+      ids[index] = e.getKey().getId();
+      straws[index] = e.getValue();
+      index++;
+    }
+  }
+
+  /**
+   * Computes the straw length of each child, scaled by 0x10000.
+   */
+  private Map<Node,Long> computeStraws(List<Node> children) {
+    Map<Node,Long> straws = new HashMap<Node,Long>();
+    List<Node> sortedNodes = sortNodes(children); // do a reverse sort by weight
+
+    int numLeft = sortedNodes.size();
+    float straw = 1.0f;
+    float wbelow = 0.0f;
+    float lastw = 0.0f;
+    int i = 0;
+    final int length = sortedNodes.size();
+    while (i < length) {
+      Node current = sortedNodes.get(i);
+      if (current.getWeight() == 0) {
+        straws.put(current, 0L);
         i++;
-        if (i == length) {
-          break;
-        }
+        continue;
+      }
+      straws.put(current, (long)(straw*0x10000));
+      i++;
+      if (i == length) {
+        break;
+      }
 
-        current = sortedNodes.get(i);
-        Node previous = sortedNodes.get(i-1);
-        if (current.getWeight() == previous.getWeight()) {
-          continue;
-        }
-        wbelow += (float)(previous.getWeight() - lastw)*numLeft;
-        for (int j = i; j < length; j++) {
-          if (sortedNodes.get(j).getWeight() == current.getWeight()) {
-            numLeft--;
-          } else {
-            break;
-          }
+      current = sortedNodes.get(i);
+      Node previous = sortedNodes.get(i-1);
+      if (current.getWeight() == previous.getWeight()) {
+        continue;
+      }
+      wbelow += (float)(previous.getWeight() - lastw)*numLeft;
+      for (int j = i; j < length; j++) {
+        if (sortedNodes.get(j).getWeight() == current.getWeight()) {
+          numLeft--;
+        } else {
+          break;
         }
-        float wnext = (float)(numLeft * (current.getWeight() - previous.getWeight()));
-        float pbelow = wbelow/(wbelow + wnext);
-        straw *= Math.pow(1.0/pbelow, 1.0/numLeft);
-        lastw = previous.getWeight();
       }
+      float wnext = (float)(numLeft * (current.getWeight() - previous.getWeight()));
+      float pbelow = wbelow/(wbelow + wnext);
+      straw *= Math.pow(1.0/pbelow, 1.0/numLeft);
+      lastw = previous.getWeight();
     }
-    hashFunction = new JenkinsHash();
+    return straws;
   }
 
   /**
@@ -100,27 +147,55 @@ class StrawSelector implements Selector {
   }
 
   public Node select(long input, long round) {
-    Node selected = null;
+    return nodes[draw(input, round)];
+  }
+
+  public int selectIndex(long input, long round) {
+    return indexes[draw(input, round)];
+  }
+
+  /**
+   * Returns the position of the longest straw in the table.
+   */
+  private int draw(long input, long round) {
+    long[] hashes = getHashBuffer(ids.length);
+    // hash all children in one pass
+    hashAll(hashFunction, input, ids, round, hashes);
+    int selected = -1;
     long hiScore = -1;
-    for (Map.Entry<Node,Long> e: straws.entrySet()) {
-      Node child = e.getKey();
-      long straw = e.getValue();
-      long score = weightedScore(child, straw, input, round);
+    for (int i = 0; i < nodes.length; i++) {
+      long score = (hashes[i]&0xffff)*straws[i];
       if (score > hiScore) {
-        selected = child;
+        selected = i;
         hiScore = score;
       }
     }
-    if (selected == null) {
+    if (selected < 0) {
       throw new IllegalStateException();
     }
     return selected;
   }
 
-  private long weightedScore(Node child, long straw, long input, long round) {
-    long hash = hashFunction.hash(input, child.getId(), round);
-    hash = hash&0xffff;
-    long weightedScore = hash*straw;
-    return weightedScore;
+  /**
+   * Hashes the input and the round against all ids, in one batch if the hash function supports it.
+   */
+  static void hashAll(MultiInputHash hashFunction, long input, long[] ids, long round,
+      long[] hashes) {
+    if (hashFunction instanceof BatchMultiInputHash) {
+      ((BatchMultiInputHash)hashFunction).hash(input, ids, round, hashes);
+    } else {
+      for (int i = 0; i < ids.length; i++) {
+        hashes[i] = hashFunction.hash(input, ids[i], round);
+      }
+    }
+  }
+
+  static long[] getHashBuffer(int size) {
+    long[] buffer = hashBuffer.get();
+    if (buffer.length < size) {
+      buffer = new long[Math.max(size, buffer.length*2)];
+      hashBuffer.set(buffer);
+    }
+    return buffer;
   }
 }
@@ -0,0 +1,340 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable crunched topology, created by {@link Crunch#makeSnapshot(Node)}. All its nodes are
+ * frozen, so a snapshot can be published to and used by any number of threads without copying it.
+ * <br/>
+ * Updates do not modify the snapshot, but return a new one. Only the path from the changed node to
+ * the root is copied, and the weights and the selectors are recomputed along that path only; all
+ * other subtrees are shared with the original snapshot. The names are looked up in a persistent map
+ * that is updated the same way. An update therefore costs O(depth) node copies and selector builds
+ * instead of a full crunch.
+ * <br/>
+ * A shared node has a different parent in every snapshot that contains it, so the nodes of a
+ * snapshot have no parent references, and {@link Node#getParent()} and {@link Node#getRoot()}
+ * throw {@link UnsupportedOperationException}. Their ancestor tables hold frozen handles of the
+ * ancestors instead, which carry only the name, the type and the id, and no children. These do not
+ * change when the path is copied, so the tables of the shared nodes stay valid, and only the new
+ * nodes of an update get tables. {@link Node#findParent(int)} thus returns the handle of the
+ * ancestor (or the node itself), and {@link Node#sameAncestor(Node, Node, int)}, which compares
+ * the names, and with it the placement rules work on snapshot nodes as on a crunched tree. The
+ * snapshot also keeps the names of the parents in a second persistent map, and
+ * {@link #getParent(Node)} and {@link #findParent(Node, int)} return the versions of the ancestors
+ * in this snapshot. A snapshot thus references only its own nodes, and does not keep the snapshots
+ * it was derived from reachable.
+ * <br/>
+ * Nodes are identified by name, and the names are assumed to be unique in the topology.
+ */
+public final class TopologySnapshot {
+  private final Crunch cruncher;
+  private final Node root;
+  // the node of this snapshot by name
+  private final PersistentNameMap<Node> nodes;
+  // the name of the parent of every node but the root, by the name of the node
+  private final PersistentNameMap<String> parents;
+
+  TopologySnapshot(Crunch cruncher, Node root) {
+    this(cruncher, detach(root), indexNames(root, PersistentNameMap.<Node>empty()),
+        addParents(root, PersistentNameMap.<String>empty()));
+  }
+
+  private TopologySnapshot(Crunch cruncher, Node root, PersistentNameMap<Node> nodes,
+      PersistentNameMap<String> parents) {
+    addAncestors(root, new Node[0]);
+    root.freeze();
+    this.cruncher = cruncher;
+    this.root = root;
+    this.nodes = nodes;
+    this.parents = parents;
+  }
+
+  /**
+   * Drops the parent references and the ancestor tables of the subtree, which is about to be frozen
+   * into the snapshot, and returns it.
+   */
+  private static Node detach(Node node) {
+    node.setParent(null);
+    if (!node.isLeaf()) {
+      for (Node child: node.getChildren()) {
+        detach(child);
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Gives the nodes that are not frozen yet, i.e. the nodes that are new in this snapshot, their
+   * ancestor tables. The new nodes are the path copies and the added subtrees, so the parents of a
+   * new node are new as well; the frozen subtrees are shared, and already have their tables.
+   */
+  private static void addAncestors(Node node, Node[] parentHandles) {
+    if (node.isFrozen()) {
+      return;
+    }
+    node.setAncestors(Crunch.extendAncestors(parentHandles, node));
+    if (!node.isLeaf()) {
+      Node[] handles = Crunch.extendAncestors(parentHandles, handle(node));
+      for (Node child: node.getChildren()) {
+        addAncestors(child, handles);
+      }
+    }
+  }
+
+  /**
+   * Returns the frozen handle of the node for the ancestor tables of its descendants, which has its
+   * name, type and id but none of its children.
+   */
+  private static Node handle(Node node) {
+    Node handle = new Node();
+    handle.setName(node.getName());
+    handle.setType(node.getType());
+    handle.setId(node.getId());
+    handle.freeze();
+    return handle;
+  }
+
+  private static PersistentNameMap<Node> indexNames(Node node, PersistentNameMap<Node> nodes) {
+    nodes = nodes.put(node.getName(), node);
+    if (!node.isLeaf()) {
+      for (Node child: node.getChildren()) {
+        nodes = indexNames(child, nodes);
+      }
+    }
+    return nodes;
+  }
+
+  private static PersistentNameMap<Node> addNames(Node node, PersistentNameMap<Node> nodes) {
+    if (nodes.get(node.getName()) != null) {
+      throw new IllegalArgumentException("duplicate node name: " + node.getName());
+    }
+    nodes = nodes.put(node.getName(), node);
+    if (!node.isLeaf()) {
+      for (Node child: node.getChildren()) {
+        nodes = addNames(child, nodes);
+      }
+    }
+    return nodes;
+  }
+
+  /**
+   * Returns the map with the parents of all nodes below the given one.
+   */
+  private static PersistentNameMap<String> addParents(Node node,
+      PersistentNameMap<String> parents) {
+    if (!node.isLeaf()) {
+      for (Node child: node.getChildren()) {
+        parents = addParents(child, parents.put(child.getName(), node.getName()));
+      }
+    }
+    return parents;
+  }
+
+  /**
+   * Returns the map without the names of the subtree.
+   */
+  private static <V> PersistentNameMap<V> removeNames(Node node, PersistentNameMap<V> map) {
+    map = map.remove(node.getName());
+    if (!node.isLeaf()) {
+      for (Node child: node.getChildren()) {
+        map = removeNames(child, map);
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Returns the (frozen) root of the crunched tree.
+   */
+  public Node getRoot() {
+    return root;
+  }
+
+  /**
+   * Returns the node of this snapshot with the given name, or null if there is none.
+   */
+  public Node getNode(String name) {
+    return nodes.get(name);
+  }
+
+  /**
+   * Returns the parent in this snapshot of the node with the name of the given one, or null for
+   * the root. The node may be a version of the node from another snapshot.
+   */
+  public Node getParent(Node node) {
+    return parent(current(node.getName()));
+  }
+
+  /**
+   * Returns the closest node of the given type on the path from the node with the name of the
+   * given one up to the root, including that node itself, like {@link Node#findParent(int)} does on
+   * a crunched tree, or null if there is none. The nodes returned are those of this snapshot.
+   */
+  public Node findParent(Node node, int type) {
+    for (Node ancestor = current(node.getName()); ancestor != null;
+        ancestor = parent(ancestor)) {
+      if (ancestor.getType() == type) {
+        return ancestor;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the parent of the node of this snapshot, or null for the root.
+   */
+  private Node parent(Node node) {
+    String name = parents.get(node.getName());
+    return name == null ? null : nodes.get(name);
+  }
+
+  private Node current(String name) {
+    Node node = nodes.get(name);
+    if (node == null) {
+      throw new IllegalArgumentException("no node named " + name);
+    }
+    return node;
+  }
+
+  /**
+   * Returns a snapshot in which the leaf with the given name is marked failed or not failed.
+   */
+  public TopologySnapshot withFailed(String name, boolean failed) {
+    List<Node> path = getPath(name);
+    Node leaf = path.get(path.size() - 1);
+    if (!leaf.isLeaf()) {
+      throw new IllegalArgumentException("you cannot set failed on a non-leaf: " + name);
+    }
+    if (leaf.isFailed() == failed) {
+      return this;
+    }
+    Node copy = new Node(leaf);
+    copy.setFailed(failed);
+    return replace(path, copy, nodes, parents);
+  }
+
+  /**
+   * Returns a snapshot in which the leaf with the given name has the given weight. The weights of
+   * the other nodes are the sums of their children's weights, and are recomputed.
+   */
+  public TopologySnapshot withWeight(String name, long weight) {
+    List<Node> path = getPath(name);
+    Node leaf = path.get(path.size() - 1);
+    if (!leaf.isLeaf()) {
+      throw new IllegalArgumentException("only the weights of leaves can be set: " + name);
+    }
+    if (leaf.getWeight() == weight) {
+      return this;
+    }
+    Node copy = new Node(leaf);
+    copy.setWeight(weight);
+    return replace(path, copy, nodes, parents);
+  }
+
+  /**
+   * Returns a snapshot in which the topological subtree is crunched and added as the last child of
+   * the node with the given name. The subtree itself is not modified.
+   */
+  public TopologySnapshot withNode(String parentName, Node topology) {
+    List<Node> path = getPath(parentName);
+    Node parent = path.get(path.size() - 1);
+    if (parent.isLeaf()) {
+      throw new IllegalArgumentException("you cannot add children to a leaf: " + parentName);
+    }
+    Node child = detach(cruncher.makeCrunchNode(topology));
+    PersistentNameMap<Node> newNodes = addNames(child, nodes);
+
+    Node copy = new Node(parent);
+    List<Node> children = new ArrayList<Node>(parent.getChildren());
+    children.add(child);
+    copy.setChildren(children);
+    cruncher.computeWeightAndSelector(copy);
+    return replace(path, copy, newNodes,
+        addParents(child, parents.put(child.getName(), parentName)));
+  }
+
+  /**
+   * Returns a snapshot without the node with the given name and its subtree. Neither the root nor
+   * the only child of a node can be removed.
+   */
+  public TopologySnapshot withoutNode(String name) {
+    List<Node> path = getPath(name);
+    if (path.size() == 1) {
+      throw new IllegalArgumentException("you cannot remove the root: " + name);
+    }
+    if (path.get(path.size() - 2).getChildren().size() == 1) {
+      throw new IllegalArgumentException("you cannot remove the only child of a node: " + name);
+    }
+    Node removed = path.get(path.size() - 1);
+    return replace(path, null, removeNames(removed, nodes), removeNames(removed, parents));
+  }
+
+  /**
+   * Copies the path from the root to the replaced node, and returns the snapshot with the new root
+   * and the copies in the name map. The replacement is the new version of the last node on the
+   * path, with its children (if any) already set up, or null to remove it. The parent names are
+   * those of the path, and do not change.
+   */
+  private TopologySnapshot replace(List<Node> path, Node replacement,
+      PersistentNameMap<Node> names, PersistentNameMap<String> parentNames) {
+    Node child = replacement;
+    if (replacement != null) {
+      names = names.put(replacement.getName(), replacement);
+    }
+    for (int i = path.size() - 2; i >= 0; i--) {
+      Node parent = path.get(i);
+      List<Node> children = new ArrayList<Node>(parent.getChildren());
+      int position = indexOf(children, path.get(i + 1));
+      if (child == null) {
+        children.remove(position);
+      } else {
+        children.set(position, child);
+      }
+      Node copy = new Node(parent);
+      copy.setChildren(children);
+      cruncher.computeWeightAndSelector(copy);
+      names = names.put(copy.getName(), copy);
+      child = copy;
+    }
+    return new TopologySnapshot(cruncher, child, names, parentNames);
+  }
+
+  private static int indexOf(List<Node> children, Node child) {
+    for (int i = 0; i < children.size(); i++) {
+      if (children.get(i) == child) {
+        return i;
+      }
+    }
+    throw new IllegalStateException(child + " is not a child of its parent");
+  }
+
+  /**
+   * Returns the path from the root to the named node, following the parent map up from the node.
+   */
+  private List<Node> getPath(String name) {
+    List<Node> path = new ArrayList<Node>();
+    for (Node node = current(name); node != null; node = parent(node)) {
+      path.add(node);
+    }
+    Collections.reverse(path);
+    return path;
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.List;
+
+/**
+ * Selection algorithm based on the "tree" bucket type of CRUSH. The children are the leaves of a
+ * binary tree whose interior nodes carry the total weight of their subtrees, and selection descends
+ * from the root choosing left or right in proportion to the subtree weights. Selection is
+ * O(log n), and reweighting or adding a child only changes the weights along its path, so data
+ * only moves between the subtrees on that path.
+ * <br/>
+ * Tree nodes are labelled as in CRUSH: child i is node 2i + 1, and the height of a node is the
+ * number of trailing zeros of its label, so that labels do not change as the tree grows.
+ */
+class TreeSelector implements IndexedSelector {
+  private static final MultiInputHash hashFunction = new JenkinsHash();
+
+  private final Node[] nodes;
+  private final int root;
+  private final long[] nodeWeights;
+  // per-label hash keys, so that trees of the same shape do not make correlated decisions
+  private final long[] nodeKeys;
+
+  public TreeSelector(Node node) {
+    if (node.isLeaf()) {
+      throw new IllegalArgumentException();
+    }
+    List<Node> children = node.getChildren();
+    final int size = children.size();
+    nodes = children.toArray(new Node[size]);
+    int depth = calculateDepth(size);
+    final int nodeCount = 1 << depth;
+    root = nodeCount >> 1;
+    nodeWeights = new long[nodeCount];
+    nodeKeys = new long[nodeCount];
+    for (int i = 0; i < size; i++) {
+      long weight = nodes[i].getWeight();
+      int label = 2*i + 1;
+      nodeWeights[label] = weight;
+      // add the weight to all the ancestors
+      while (label != root) {
+        label = parent(label);
+        nodeWeights[label] += weight;
+      }
+    }
+    for (int label = 0; label < nodeCount; label++) {
+      nodeKeys[label] = hashFunction.hash(node.getId(), label);
+    }
+  }
+
+  public Node select(long input, long round) {
+    return nodes[selectIndex(input, round)];
+  }
+
+  public int selectIndex(long input, long round) {
+    int label = root;
+    while ((label & 1) == 0) { // not a leaf
+      int left = left(label);
+      long draw = ((hashFunction.hash(input, nodeKeys[label], round) & 0xffff)*nodeWeights[label])
+          >>> 16;
+      // an all-zero subtree never sends us right, so we never walk past the last child
+      if (draw < nodeWeights[left] || nodeWeights[label] == 0) {
+        label = left;
+      } else {
+        label = right(label);
+      }
+    }
+    return label >> 1;
+  }
+
+  private static int calculateDepth(int size) {
+    int depth = 1;
+    for (int t = size - 1; t > 0; t >>= 1) {
+      depth++;
+    }
+    return depth;
+  }
+
+  private static int height(int label) {
+    return Integer.numberOfTrailingZeros(label);
+  }
+
+  private static int left(int label) {
+    return label - (1 << (height(label) - 1));
+  }
+
+  private static int right(int label) {
+    return label + (1 << (height(label) - 1));
+  }
+
+  private static int parent(int label) {
+    int h = height(label);
+    return ((label & (1 << (h + 1))) != 0) ? label - (1 << h) : label + (1 << h);
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.List;
+
+/**
+ * Selection algorithm based on the "uniform" bucket type of CRUSH, for children that all have the
+ * same weight. The child for round r is picked in constant time as (hash(x) + r*p) mod m, where m is
+ * the number of children and p is a prime larger than m that is chosen from the bucket id. As p and
+ * m are coprime, the first m rounds for any input select m distinct children.
+ * <br/>
+ * The price is stability: adding or removing a child changes m, and most of the data moves.
+ */
+class UniformSelector implements IndexedSelector {
+  private static final MultiInputHash hashFunction = new JenkinsHash();
+
+  private final Node[] nodes;
+  private final long id;
+  private final long prime;
+
+  public UniformSelector(Node node) {
+    if (node.isLeaf()) {
+      throw new IllegalArgumentException();
+    }
+    List<Node> children = node.getChildren();
+    nodes = children.toArray(new Node[children.size()]);
+    for (Node child: nodes) {
+      if (child.getWeight() != nodes[0].getWeight()) {
+        throw new IllegalArgumentException("the uniform selection requires children of equal " +
+            "weight but " + node.getName() + " has children weighing " + nodes[0].getWeight() +
+            " and " + child.getWeight());
+      }
+    }
+    id = node.getId();
+    prime = choosePrime(id, nodes.length);
+  }
+
+  public Node select(long input, long round) {
+    return nodes[selectIndex(input, round)];
+  }
+
+  public int selectIndex(long input, long round) {
+    final long m = nodes.length;
+    long index = (hashFunction.hash(input, id) + round*prime) % m;
+    if (index < 0) {
+      index += m;
+    }
+    return (int)index;
+  }
+
+  /**
+   * Returns the smallest prime that is larger than m plus an offset in [0, m) derived from the id,
+   * so that different buckets of the same size generally step through their children differently.
+   */
+  static long choosePrime(long id, int m) {
+    return Utils.nextPrime(m + 1 + hashFunction.hash(id)%m);
+  }
+}
@@ -29,6 +29,32 @@ public class Utils {
         & 0xffffffffL;
   }
 
+  /**
+   * Returns whether n is a prime, by trial division. Meant for the small table and bucket sizes of
+   * the selectors.
+   */
+  static boolean isPrime(long n) {
+    if (n < 2) {
+      return false;
+    }
+    for (long d = 2; d*d <= n; d++) {
+      if (n%d == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the smallest prime that is equal to or larger than n.
+   */
+  static long nextPrime(long n) {
+    while (!isPrime(n)) {
+      n++;
+    }
+    return n;
+  }
+
   private static int ord(byte b) {
     return b & 0xff;
   }
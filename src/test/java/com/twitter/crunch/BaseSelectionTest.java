@@ -15,6 +15,9 @@
 
 package com.twitter.crunch;
 
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.security.MessageDigest;
@@ -24,6 +27,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import com.twitter.crunch.MappingDiff.Value;
 import com.twitter.crunch.Node.Selection;
@@ -152,15 +156,20 @@ public class BaseSelectionTest {
     System.out.println("relative deviation (%): " + deviation*100);
   }
 
-  private void analyzeDiff(Map<Integer, List<String>> mapping1,
+  private float analyzeDiff(Map<Integer, List<String>> mapping1,
       Map<Integer, List<String>> mapping2) {
     // compute the diff
     Map<Integer,List<Value<String>>> diff = MappingDiff.calculateDiff(mapping1, mapping2);
     System.out.println("number of data objects that moved: " + diff.size());
-    System.out.println("relative movement (%): " + ((float)diff.size())*100/mapping1.size());
+    float movement = ((float)diff.size())*100/mapping1.size();
+    System.out.println("relative movement (%): " + movement);
+    return movement;
   }
 
-  protected void doTestStability(Class<? extends Selector> type, boolean removal) {
+  /**
+   * Returns the relative movement in percent.
+   */
+  protected float doTestStability(Class<? extends Selector> type, boolean removal) {
     // first try: create the full tree
     Node rack = createLargeTree();
     Selector selector = createSelector(type, rack);
@@ -189,7 +198,76 @@ public class BaseSelectionTest {
       mapping2.put(i, Collections.singletonList(node));
     }
 
-    analyzeDiff(mapping1, mapping2);
+    return analyzeDiff(mapping1, mapping2);
+  }
+
+  /**
+   * Increases the weight of one child of a bucket with mixed weights, and returns the number of
+   * selections that changed. If strict, verifies that every selection that changed now goes to that
+   * child.
+   */
+  protected int doTestReweight(Class<? extends Selector> type, boolean strict) {
+    Node rack = createMixedTree(64);
+    Selector before = createSelector(type, rack);
+    Node reweighted = rack.getChildren().get(17);
+    reweighted.setWeight(300);
+    Selector after = createSelector(type, rack);
+    return countMoved(reweighted, before, after, strict);
+  }
+
+  /**
+   * Appends a child to a bucket with mixed weights, and verifies that every selection that changed
+   * now goes to the new child.
+   */
+  protected void doTestAppend(Class<? extends Selector> type) {
+    Node rack = createMixedTree(64);
+    Selector before = createSelector(type, rack);
+    Node extra = createNode("node1000000", StorageSystemTypes.DISK, 1000000, 100, null);
+    rack.getChildren().add(extra);
+    Selector after = createSelector(type, rack);
+    countMoved(extra, before, after, true);
+  }
+
+  private Node createMixedTree(int size) {
+    Node rack = createNode("rack", StorageSystemTypes.RACK, 0, 0, null);
+    List<Node> children = new ArrayList<Node>();
+    for (int i = 0; i < size; i++) {
+      children.add(createNode("node" + i, StorageSystemTypes.DISK, i, 100 + 10*(i%7), null));
+    }
+    rack.setChildren(children);
+    return rack;
+  }
+
+  /**
+   * Creates a rack of (size) disks, each weighing 50, 100, 150 or 200 as the generator picks.
+   */
+  protected Node createRack(int size, Random rng) {
+    Node rack = createNode("rack", StorageSystemTypes.RACK, 0, 0, null);
+    List<Node> children = new ArrayList<Node>();
+    for (int i = 0; i < size; i++) {
+      children.add(createNode("node" + i, StorageSystemTypes.DISK, i, 50 + rng.nextInt(4)*50,
+          null));
+    }
+    rack.setChildren(children);
+    return rack;
+  }
+
+  private int countMoved(Node target, Selector before, Selector after, boolean strict) {
+    int moved = 0;
+    for (long input = 0; input < 100000; input++) {
+      Node b = before.select(input, 1);
+      Node a = after.select(input, 1);
+      if (a != b) {
+        if (strict) {
+          assertSame(target, a);
+        }
+        moved++;
+      }
+    }
+    System.out.println("number of data objects that moved after changing " + target.getName() +
+        ": " + moved);
+    assertTrue(moved > 0);
+    return moved;
   }
 
   /**
@@ -0,0 +1,461 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+
+public class CRUSHPlacementAlgorithmTest {
+  private static final int TRIES = 2000;
+
+  /**
+   * The array-based selection must fill a reused output array with what the compact placement, an
+   * independent implementation, selects, also when the predicate rejects more nodes than the
+   * initial scratch space holds.
+   */
+  @Test
+  public void testSelectIntoArray() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    TestUtils.removeOneNode(crunch);
+    // leaves one of the 12 disks per storage node
+    Predicate<Node> predicate = new Predicate<Node>() {
+      public boolean apply(Node node) {
+        return node.getName().endsWith("hd12");
+      }
+    };
+
+    CRUSHPlacementAlgorithm pa = new CRUSHPlacementAlgorithm();
+    PlacementAlgorithm expected = new CompactPlacementAlgorithm(new CompactTopology(crunch));
+    Node[] selected = new Node[8];
+    for (long input = 0; input < TRIES; input++) {
+      int count = pa.select(crunch, input, 3, StorageSystemTypes.DISK,
+          Predicates.<Node>alwaysTrue(), selected);
+      assertSelection(expected.select(crunch, input, 3, StorageSystemTypes.DISK), selected, count);
+      count = pa.select(crunch, input, 3, StorageSystemTypes.DISK, predicate, selected);
+      assertSelection(expected.select(crunch, input, 3, StorageSystemTypes.DISK, predicate),
+          selected, count);
+    }
+  }
+
+  /**
+   * A batch must select what the inputs select one by one, whether the inputs walk the tree
+   * together (stateless) or one by one (with the round offset or an assignment tracker).
+   */
+  @Test
+  public void testBatchSelect() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    // fail a whole storage node, to have retries and loopbacks
+    for (Node disk: crunch.findChildren(StorageSystemTypes.STORAGE_NODE).get(7).getAllLeafNodes()) {
+      disk.setFailed(true);
+    }
+    long[] inputs = new long[TRIES];
+    for (int i = 0; i < TRIES; i++) {
+      inputs[i] = i*7919L;
+    }
+    Node dc = crunch.getChildren().get(0);
+    final int count = 4;
+    CRUSHPlacementAlgorithm[][] pairs = {
+        {new CRUSHPlacementAlgorithm(), new CRUSHPlacementAlgorithm()},
+        {new CRUSHPlacementAlgorithm(true), new CRUSHPlacementAlgorithm(true)},
+        {new CRUSHPlacementAlgorithm(AssignmentTrackerFactory.create(dc, TRIES*count, 0.1)),
+            new CRUSHPlacementAlgorithm(AssignmentTrackerFactory.create(dc, TRIES*count, 0.1))}
+    };
+    for (CRUSHPlacementAlgorithm[] pair: pairs) {
+      Node[] selected = new Node[TRIES*count];
+      int[] counts = new int[TRIES];
+      pair[0].select(dc, inputs, count, StorageSystemTypes.DISK, selected, counts);
+      for (int i = 0; i < TRIES; i++) {
+        List<Node> expected = pair[1].select(dc, inputs[i], count, StorageSystemTypes.DISK);
+        assertEquals(expected.size(), counts[i]);
+        for (int j = 0; j < counts[i]; j++) {
+          assertSame(expected.get(j), selected[i*count + j]);
+        }
+      }
+    }
+
+    // at most 2 of the 3 disks can be selected: each input gives up on the last one
+    Node sn = crunch.findChildren(StorageSystemTypes.STORAGE_NODE).get(20);
+    List<Node> disks = sn.getChildren();
+    for (int i = 2; i < disks.size(); i++) {
+      disks.get(i).setFailed(true);
+    }
+    Node[] selected = new Node[TRIES*3];
+    int[] counts = new int[TRIES];
+    new CRUSHPlacementAlgorithm().select(sn, inputs, 3, StorageSystemTypes.DISK, selected, counts);
+    for (int i = 0; i < TRIES; i++) {
+      List<Node> expected = new CRUSHPlacementAlgorithm().select(sn, inputs[i], 3,
+          StorageSystemTypes.DISK);
+      assertTrue(counts[i] < 3);
+      assertEquals(expected, Arrays.asList(selected).subList(i*3, i*3 + counts[i]));
+    }
+  }
+
+  /**
+   * In the indep mode, a failed disk must only move the positions it held, directly and through the
+   * rack isolation rules.
+   */
+  @Test
+  public void testIndepKeepsPositions() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    Node dc = crunch.getChildren().get(0);
+    CRUSHPlacementAlgorithm pa = new CRUSHPlacementAlgorithm();
+    PlacementRules rules = new RackIsolationPlacementRules(PlacementRules.Mode.INDEP);
+    final int count = 6;
+    List<List<Node>> before = new ArrayList<List<Node>>();
+    for (int input = 0; input < TRIES; input++) {
+      before.add(pa.selectIndep(dc, input, count, StorageSystemTypes.DISK));
+      before.add(rules.select(dc, input, count, pa));
+    }
+    Node failed = dc.getAllLeafNodes().get(37);
+    failed.setFailed(true);
+
+    int moved = 0;
+    for (int input = 0; input < TRIES; input++) {
+      List<List<Node>> after = Arrays.asList(pa.selectIndep(dc, input, count,
+          StorageSystemTypes.DISK), rules.select(dc, input, count, pa));
+      for (int i = 0; i < 2; i++) {
+        List<Node> expected = before.get(2*input + i);
+        List<Node> actual = after.get(i);
+        assertEquals(count, actual.size());
+        for (int position = 0; position < count; position++) {
+          if (expected.get(position) == failed) {
+            assertTrue(actual.get(position) != failed);
+            moved++;
+          } else {
+            assertSame(expected.get(position), actual.get(position));
+          }
+        }
+      }
+      List<Node> racks = new ArrayList<Node>();
+      for (Node disk: after.get(1)) {
+        assertFalse(racks.contains(disk.findParent(StorageSystemTypes.RACK)));
+        racks.add(disk.findParent(StorageSystemTypes.RACK));
+      }
+    }
+    assertTrue(moved > 0);
+  }
+
+  /**
+   * In the indep mode of the rack isolation rules, a rack whose disks have all failed must only
+   * move the positions it held, to other racks, and leave no holes.
+   */
+  @Test
+  public void testIndepRackFailure() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    Node dc = crunch.getChildren().get(0);
+    CRUSHPlacementAlgorithm pa = new CRUSHPlacementAlgorithm();
+    PlacementRules rules = new RackIsolationPlacementRules(PlacementRules.Mode.INDEP);
+    final int count = 4;
+    List<List<Node>> before = new ArrayList<List<Node>>();
+    for (int input = 0; input < TRIES; input++) {
+      before.add(rules.select(dc, input, count, pa));
+    }
+    Node failedRack = dc.getChildren().get(2);
+    for (Node disk: failedRack.getAllLeafNodes()) {
+      disk.setFailed(true);
+    }
+
+    int moved = 0;
+    for (int input = 0; input < TRIES; input++) {
+      List<Node> expected = before.get(input);
+      List<Node> actual = rules.select(dc, input, count, pa);
+      assertEquals(count, actual.size());
+      List<Node> racks = new ArrayList<Node>();
+      for (int position = 0; position < count; position++) {
+        Node disk = actual.get(position);
+        assertNotNull(disk);
+        assertFalse(disk.isFailed());
+        Node rack = disk.findParent(StorageSystemTypes.RACK);
+        assertFalse(racks.contains(rack));
+        racks.add(rack);
+        if (expected.get(position).findParent(StorageSystemTypes.RACK) == failedRack) {
+          assertTrue(rack != failedRack);
+          moved++;
+        } else {
+          assertSame(expected.get(position), disk);
+        }
+      }
+    }
+    assertTrue(moved > 0);
+  }
+
+  @Test
+  public void testIndepHoles() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    Node sn = crunch.findChildren(StorageSystemTypes.STORAGE_NODE).get(20);
+    List<Node> disks = sn.getChildren();
+    for (int i = 2; i < disks.size(); i++) {
+      disks.get(i).setFailed(true);
+    }
+    CRUSHPlacementAlgorithm pa = new CRUSHPlacementAlgorithm();
+    for (int input = 0; input < TRIES; input++) {
+      Node[] selected = new Node[3];
+      int filled = pa.selectIndep(sn, input, 3, StorageSystemTypes.DISK,
+          Predicates.<Node>alwaysTrue(), selected);
+      List<Node> filledDisks = new ArrayList<Node>();
+      for (Node disk: selected) {
+        if (disk != null) {
+          assertFalse(disk.isFailed());
+          assertFalse(filledDisks.contains(disk));
+          filledDisks.add(disk);
+        }
+      }
+      assertTrue(filled < 3);
+      assertEquals(filledDisks.size(), filled);
+    }
+  }
+
+  /**
+   * The limits of the tunables must cut the selection short where the defaults retry, and be
+   * counted; the batch must still select what the inputs select one by one.
+   */
+  @Test
+  public void testTunables() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    for (Node disk: crunch.findChildren(StorageSystemTypes.STORAGE_NODE).get(7).getAllLeafNodes()) {
+      disk.setFailed(true);
+    }
+    Node dc = crunch.getChildren().get(0);
+    // at most 2 of the 3 disks can be selected: each input gives up on the last one
+    Node sn = crunch.findChildren(StorageSystemTypes.STORAGE_NODE).get(20);
+    List<Node> disks = sn.getChildren();
+    for (int i = 2; i < disks.size(); i++) {
+      disks.get(i).setFailed(true);
+    }
+
+    PlacementTunables defaults = new PlacementTunables();
+    CRUSHPlacementAlgorithm pa = new CRUSHPlacementAlgorithm(defaults);
+    for (int input = 0; input < TRIES; input++) {
+      assertTrue(pa.select(sn, input, 3, StorageSystemTypes.DISK).size() <= 2);
+    }
+    assertTrue(defaults.getCounters().getLoopbackLimitHits() >= TRIES);
+    assertEquals(0, defaults.getCounters().getRetryBudgetHits());
+
+    PlacementTunables budget = new PlacementTunables(PlacementTunables.DEFAULT_LOOPBACK_LIMIT,
+        PlacementTunables.UNLIMITED, 3, PlacementTunables.DEFAULT_CONVERGENCE_LIMIT);
+    pa = new CRUSHPlacementAlgorithm(budget);
+    for (int input = 0; input < TRIES; input++) {
+      assertTrue(pa.select(sn, input, 3, StorageSystemTypes.DISK).size() <= 2);
+    }
+    assertEquals(TRIES, budget.getCounters().getRetryBudgetHits());
+    assertEquals(0, budget.getCounters().getLoopbackLimitHits());
+
+    long[] inputs = new long[TRIES];
+    for (int i = 0; i < TRIES; i++) {
+      inputs[i] = i*7919L;
+    }
+    final int count = 4;
+    PlacementTunables[] tunables = {
+        new PlacementTunables(2, 0, PlacementTunables.UNLIMITED, 1),
+        new PlacementTunables(PlacementTunables.DEFAULT_LOOPBACK_LIMIT, 1, 2, 1),
+        new PlacementTunables(0, PlacementTunables.UNLIMITED, 0, 1)
+    };
+    for (PlacementTunables t: tunables) {
+      Node[] selected = new Node[TRIES*count];
+      int[] counts = new int[TRIES];
+      new CRUSHPlacementAlgorithm(t).select(dc, inputs, count, StorageSystemTypes.DISK, selected,
+          counts);
+      PlacementCounters batchCounters = t.getCounters();
+      String batch = batchCounters.toString();
+      batchCounters.reset();
+      CRUSHPlacementAlgorithm expected = new CRUSHPlacementAlgorithm(t);
+      for (int i = 0; i < TRIES; i++) {
+        assertEquals(expected.select(dc, inputs[i], count, StorageSystemTypes.DISK),
+            Arrays.asList(selected).subList(i*count, i*count + counts[i]));
+      }
+      assertEquals(batch, batchCounters.toString());
+    }
+    assertTrue(tunables[0].getCounters().getLocalRetryLimitHits() > 0);
+    assertTrue(tunables[2].getCounters().getRetryBudgetHits() > 0);
+  }
+
+  /**
+   * The rules must give up after the convergence limit when the racks with good disks run out.
+   */
+  @Test
+  public void testConvergenceLimit() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    Node dc = crunch.getChildren().get(0);
+    List<Node> racks = dc.getChildren();
+    for (int i = 2; i < racks.size(); i++) {
+      for (Node disk: racks.get(i).getAllLeafNodes()) {
+        disk.setFailed(true);
+      }
+    }
+    PlacementTunables tunables = new PlacementTunables(PlacementTunables.DEFAULT_LOOPBACK_LIMIT,
+        PlacementTunables.UNLIMITED, PlacementTunables.UNLIMITED, 5);
+    CRUSHPlacementAlgorithm pa = new CRUSHPlacementAlgorithm(tunables);
+    try {
+      new RackIsolationPlacementRules().select(dc, 1, 3, pa);
+      fail("3 racks were selected out of 2 with good disks");
+    } catch (MappingException expected) {
+    }
+    assertEquals(1, tunables.getCounters().getConvergenceLimitHits());
+  }
+
+  /**
+   * The replicas that start on the rounds their predecessors retried with take those descents
+   * again instead of selecting them anew, which must not change the selections: with many failed
+   * disks, they must be those of the compact placement, which computes every descent.
+   */
+  @Test
+  public void testRetriedDescents() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    for (Node disk: crunch.getAllLeafNodes()) {
+      if (disk.getId() % 3 == 0) {
+        disk.setFailed(true);
+      }
+    }
+    PlacementAlgorithm expected = new CompactPlacementAlgorithm(new CompactTopology(crunch));
+    PlacementAlgorithm actual = new CRUSHPlacementAlgorithm();
+    Node dc = crunch.getChildren().get(0);
+    for (long input = 0; input < TRIES; input++) {
+      assertEquals(expected.select(dc, input, 6, StorageSystemTypes.DISK),
+          actual.select(dc, input, 6, StorageSystemTypes.DISK));
+    }
+  }
+
+  /**
+   * A predicate that throws leaves the selection in the middle of its retries. The scratch arrays
+   * of the thread must be released all the same, so that the next selections on the thread are
+   * those of a fresh thread.
+   */
+  @Test
+  public void testThrowingPredicate() throws Exception {
+    final Node dc = createFailedTree().getChildren().get(0);
+    final CRUSHPlacementAlgorithm pa = new CRUSHPlacementAlgorithm();
+    for (long input = 0; input < TRIES; input++) {
+      final int[] calls = new int[1];
+      try {
+        pa.select(dc, input, 6, StorageSystemTypes.DISK, new Predicate<Node>() {
+          public boolean apply(Node node) {
+            if (++calls[0] == 5) {
+              throw new IllegalStateException("the predicate failed");
+            }
+            return true;
+          }
+        });
+      } catch (IllegalStateException expected) {
+      }
+    }
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      List<List<Node>> expected = executor.submit(new Callable<List<List<Node>>>() {
+        public List<List<Node>> call() {
+          return selectAll(pa, dc);
+        }
+      }).get();
+      assertEquals(expected, selectAll(pa, dc));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * A selection from the predicate of another on the same thread must not disturb it.
+   */
+  @Test
+  public void testNestedSelection() {
+    final Node dc = createFailedTree().getChildren().get(0);
+    final CRUSHPlacementAlgorithm pa = new CRUSHPlacementAlgorithm();
+    for (long input = 0; input < TRIES; input++) {
+      final long nested = input + TRIES;
+      final List<Node> expectedNested = pa.select(dc, nested, 6, StorageSystemTypes.DISK);
+      List<Node> expected = pa.select(dc, input, 6, StorageSystemTypes.DISK);
+      List<Node> actual = pa.select(dc, input, 6, StorageSystemTypes.DISK, new Predicate<Node>() {
+        public boolean apply(Node node) {
+          assertEquals(expectedNested, pa.select(dc, nested, 6, StorageSystemTypes.DISK));
+          return true;
+        }
+      });
+      assertEquals(expected, actual);
+    }
+  }
+
+  private static Node createFailedTree() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    for (Node disk: crunch.getAllLeafNodes()) {
+      if (disk.getId() % 3 == 0) {
+        disk.setFailed(true);
+      }
+    }
+    return crunch;
+  }
+
+  private static List<List<Node>> selectAll(PlacementAlgorithm pa, Node parent) {
+    List<List<Node>> selections = new ArrayList<List<Node>>(TRIES);
+    for (long input = 0; input < TRIES; input++) {
+      selections.add(pa.select(parent, input, 6, StorageSystemTypes.DISK));
+    }
+    return selections;
+  }
+
+  /**
+   * After the reset, an instance that keeps the round offset must select like a new one.
+   */
+  @Test
+  public void testResetOffsets() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    CRUSHPlacementAlgorithm pa = new CRUSHPlacementAlgorithm(true);
+    for (Node dc: crunch.getChildren()) {
+      pa.resetOffsets();
+      CRUSHPlacementAlgorithm fresh = new CRUSHPlacementAlgorithm(true);
+      for (int round = 0; round < 3; round++) {
+        for (Node leaf: dc.getAllLeafNodes()) {
+          assertEquals(fresh.select(dc, leaf.getId(), 1, StorageSystemTypes.DISK),
+              pa.select(dc, leaf.getId(), 1, StorageSystemTypes.DISK));
+        }
+      }
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testIndepRulesNeedCrush() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    new RackIsolationPlacementRules(PlacementRules.Mode.INDEP).select(crunch, 1, 3,
+        new CompactPlacementAlgorithm(new CompactTopology(crunch)));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testOutputTooSmall() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createSimpleTree());
+    new CRUSHPlacementAlgorithm().select(crunch, 1, 3, StorageSystemTypes.DISK,
+        Predicates.<Node>alwaysTrue(), new Node[2]);
+  }
+
+  private static void assertSelection(List<Node> expected, Node[] actual, int count) {
+    assertEquals(expected.size(), count);
+    for (int i = 0; i < count; i++) {
+      assertSame(expected.get(i), actual[i]);
+    }
+  }
+}
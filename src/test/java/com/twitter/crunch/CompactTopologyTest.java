@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+import com.twitter.crunch.Node.Selection;
+
+public class CompactTopologyTest {
+  private static final int TRIES = 2000;
+
+  @Test
+  public void testStructure() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createSimpleTree());
+    CompactTopology topology = new CompactTopology(crunch);
+    // 1 root + 2 dcs + 4 racks + 8 disks
+    assertEquals(15, topology.size());
+    for (int i = 0; i < topology.size(); i++) {
+      Node node = topology.getNode(i);
+      assertEquals(i, topology.indexOf(node));
+      assertEquals(node.getType(), topology.getType(i));
+      assertEquals(node.getId(), topology.getId(i));
+      assertEquals(node.getWeight(), topology.getWeight(i));
+      assertEquals(node.isLeaf(), topology.isLeaf(i));
+      for (int type = Types.ROOT; type <= StorageSystemTypes.DISK + 1; type++) {
+        assertEquals(node.getChildrenCount(type), topology.getChildrenCount(i, type));
+      }
+      if (i == 0) {
+        assertEquals(-1, topology.getParent(i));
+      } else {
+        assertSame(node.getParent(), topology.getNode(topology.getParent(i)));
+      }
+      for (int c = 0; c < topology.getChildCount(i); c++) {
+        assertSame(node.getChildren().get(c), topology.getNode(topology.getFirstChild(i) + c));
+      }
+    }
+    assertEquals(-1, topology.indexOf(new Node(crunch)));
+  }
+
+  /**
+   * The compact placement must select exactly what the CRUSH placement does on the same tree, for
+   * every selection type, with failed disks and with a predicate.
+   */
+  @Test
+  public void testMatchesCrushPlacement() throws MappingException {
+    for (Selection selection: Selection.values()) {
+      Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree(selection));
+      TestUtils.removeOneNode(crunch);
+      final Node excludedRack = crunch.getChildren().get(0).getChildren().get(0);
+
+      PlacementAlgorithm expected = new CRUSHPlacementAlgorithm();
+      PlacementAlgorithm actual = new CompactPlacementAlgorithm(new CompactTopology(crunch));
+      Predicate<Node> predicate = new Predicate<Node>() {
+        public boolean apply(Node node) {
+          return node != excludedRack;
+        }
+      };
+      PlacementRules rules = new RackIsolationPlacementRules();
+      Node dc = crunch.getChildren().get(1);
+      for (long input = 0; input < TRIES; input++) {
+        assertSelection(expected.select(crunch, input, 3, StorageSystemTypes.DISK),
+            actual.select(crunch, input, 3, StorageSystemTypes.DISK));
+        assertSelection(expected.select(crunch, input, 4, StorageSystemTypes.RACK, predicate),
+            actual.select(crunch, input, 4, StorageSystemTypes.RACK, predicate));
+        assertSelection(rules.select(dc, input, 3, expected), rules.select(dc, input, 3, actual));
+      }
+    }
+  }
+
+  /**
+   * With tight retry limits and most disks failed, the compact placement must give up on the same
+   * replicas as the CRUSH placement, and count the same limits hit.
+   */
+  @Test
+  public void testMatchesCrushPlacementWithTunables() throws MappingException {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    List<Node> disks = crunch.getAllLeafNodes();
+    for (int i = 0; i < disks.size(); i++) {
+      disks.get(i).setFailed(i % 3 != 0);
+    }
+    for (int[] limits: new int[][] {{1, 0, 4}, {0, 2, PlacementTunables.UNLIMITED},
+        {3, PlacementTunables.UNLIMITED, 6}}) {
+      PlacementTunables expectedTunables = new PlacementTunables(limits[0], limits[1], limits[2],
+          PlacementTunables.DEFAULT_CONVERGENCE_LIMIT);
+      PlacementTunables actualTunables = new PlacementTunables(limits[0], limits[1], limits[2],
+          PlacementTunables.DEFAULT_CONVERGENCE_LIMIT);
+      PlacementAlgorithm expected = new CRUSHPlacementAlgorithm(expectedTunables);
+      PlacementAlgorithm actual = new CompactPlacementAlgorithm(new CompactTopology(crunch),
+          actualTunables);
+      for (long input = 0; input < TRIES; input++) {
+        assertSelection(expected.select(crunch, input, 3, StorageSystemTypes.DISK),
+            actual.select(crunch, input, 3, StorageSystemTypes.DISK));
+      }
+      PlacementCounters counters = expectedTunables.getCounters();
+      assertTrue(counters.getLoopbackLimitHits() + counters.getRetryBudgetHits() > 0);
+      assertEquals(counters.toString(), actualTunables.getCounters().toString());
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testUnknownParent() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createSimpleTree());
+    PlacementAlgorithm pa = new CompactPlacementAlgorithm(new CompactTopology(crunch));
+    pa.select(new Crunch().makeCrunch(TestUtils.createSimpleTree()), 1, 1, StorageSystemTypes.DISK);
+  }
+
+  private void assertSelection(List<Node> expected, List<Node> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertSame(expected.get(i), actual.get(i));
+    }
+  }
+}
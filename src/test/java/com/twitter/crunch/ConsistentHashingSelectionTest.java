@@ -15,8 +15,24 @@
 
 package com.twitter.crunch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.junit.Test;
 
+import com.twitter.crunch.Node.Selection;
+
 public class ConsistentHashingSelectionTest extends BaseSelectionTest {
   private final Class<? extends Selector> cls = ConsistentHashingSelector.class;
 
@@ -34,4 +50,83 @@ public class ConsistentHashingSelectionTest extends BaseSelectionTest {
   public void testStabilityOnAddition() {
     doTestStability(cls, false);
   }
+
+  /**
+   * The SHA-1 mode must select exactly what the original list-based selector did.
+   */
+  @Test
+  public void testMatchesLegacySelector() {
+    Random rng = new Random(42);
+    for (int size = 1; size <= 64; size *= 4) {
+      Node rack = createRack(size, rng);
+      Selector expected = new LegacyConsistentHashingSelector(rack);
+      Selector actual = new ConsistentHashingSelector(rack);
+      for (long input = 0; input < 2000; input++) {
+        for (long round = 1; round <= 3; round++) {
+          assertSame(expected.select(input, round), actual.select(input, round));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testFastHash() {
+    Random rng = new Random(7);
+    Node rack = createRack(16, rng);
+    Selector selector = new ConsistentHashingSelector(rack, new JenkinsHash());
+    Map<Node,Integer> counts = new HashMap<Node,Integer>();
+    final int tries = 100000;
+    for (long input = 0; input < tries; input++) {
+      Node selected = selector.select(input, 1);
+      Integer old = counts.get(selected);
+      counts.put(selected, old == null ? 1 : old + 1);
+    }
+    // every node with a weight gets some of the data
+    for (Node child: rack.getChildren()) {
+      if (child.getWeight() > 0) {
+        assertTrue(counts.containsKey(child));
+      }
+    }
+  }
+
+  /**
+   * A crunched tree shared by several threads must select what it selects on one thread.
+   */
+  @Test
+  public void testConcurrentSelection() throws Exception {
+    final Node crunch =
+        new Crunch().makeCrunch(TestUtils.createLargeTree(Selection.CONSISTENT_HASHING));
+    final int size = 5000;
+    final List<List<Node>> expected = selectAll(crunch, size);
+
+    final int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<List<List<Node>>>> futures = new ArrayList<Future<List<List<Node>>>>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(new Callable<List<List<Node>>>() {
+          public List<List<Node>> call() {
+            return selectAll(crunch, size);
+          }
+        }));
+      }
+      for (Future<List<List<Node>>> future: futures) {
+        List<List<Node>> actual = future.get();
+        for (int i = 0; i < size; i++) {
+          assertEquals(expected.get(i), actual.get(i));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private List<List<Node>> selectAll(Node crunch, int size) {
+    PlacementAlgorithm pa = new CRUSHPlacementAlgorithm();
+    List<List<Node>> selections = new ArrayList<List<Node>>(size);
+    for (long input = 0; input < size; input++) {
+      selections.add(pa.select(crunch, input, 3, StorageSystemTypes.DISK));
+    }
+    return selections;
+  }
 }
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+/**
+ * Compares the time of the serial and the parallel crunch as the topology grows to 1M leaves. This
+ * is not part of the test suite; run it explicitly with
+ * <code>mvn test -Dtest=CrunchBenchmark -DargLine=-Xmx4g</code>.
+ */
+public class CrunchBenchmark {
+  // racks per data center for the measured topologies (with 2 data centers, 10 storage nodes per
+  // rack and 12 disks per storage node); the last one has 1,008,000 disks
+  private static final int[] RACKS = {4, 40, 400, 4200};
+  private static final int WARMUP = 2;
+  private static final int RUNS = 3;
+
+  private long sink;
+
+  @Test
+  public void benchmark() {
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      Crunch serial = new Crunch();
+      Crunch parallel = new Crunch();
+      parallel.setExecutor(executor);
+      System.out.println("disks\tserial (ms)\tparallel (ms, " + threads + " threads)");
+      for (int racks: RACKS) {
+        Node topology = PlacementBenchmark.createTree(2, racks, 10, 12);
+        System.out.println(String.format("%d\t%.1f\t%.1f", racks*2*10*12,
+            measure(serial, topology), measure(parallel, topology)));
+      }
+    } finally {
+      executor.shutdown();
+    }
+    System.out.println("(sink: " + sink + ")");
+  }
+
+  private double measure(Crunch cruncher, Node topology) {
+    double best = Double.MAX_VALUE;
+    for (int run = 0; run < WARMUP + RUNS; run++) {
+      long begin = System.nanoTime();
+      Node crunch = cruncher.makeCrunch(topology);
+      long end = System.nanoTime();
+      sink += crunch.getWeight();
+      if (run >= WARMUP) {
+        best = Math.min(best, (end - begin)/1000000.0);
+      }
+    }
+    return best;
+  }
+}
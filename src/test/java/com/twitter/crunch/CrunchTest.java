@@ -16,15 +16,23 @@
 package com.twitter.crunch;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Test;
 
+import com.twitter.crunch.Node.Selection;
+
 public class CrunchTest {
   @Test
   public void testMakeCrunch() {
@@ -98,4 +106,195 @@ public class CrunchTest {
     verifyNode(crunched);
     assertEquals(700, crunched.getWeight());
   }
+
+  /**
+   * Recrunching a subtree must index its ancestors again, and their queries must see the change.
+   */
+  @Test
+  public void testRecrunchSubtree() {
+    Node crunched = new Crunch().makeCrunch(TestUtils.createSimpleTree());
+    Node rack = crunched.getChildren().get(1).getChildren().get(1);
+    Node hd = rack.getChildren().remove(1);
+    new Crunch().recrunch(rack);
+    for (Node node = rack; node != null; node = node.getParent()) {
+      assertNotNull(node.getIndex());
+    }
+    assertEquals(7, crunched.getChildrenCount(StorageSystemTypes.DISK));
+    assertEquals(7, crunched.getLeafView().size());
+    assertFalse(crunched.getAllLeafNodes().contains(hd));
+    assertNull(crunched.findNode(hd.getName()));
+  }
+
+  /**
+   * Every delta applied in place must give the same tree as crunching the changed topology from
+   * scratch.
+   */
+  @Test
+  public void testIncrementalRecrunch() throws MappingException {
+    for (Selection selection: new Selection[] {Selection.STRAW, Selection.STRAW2,
+        Selection.CONSISTENT_HASHING}) {
+      Crunch cruncher = new Crunch();
+      Node topology = TestUtils.createLargeTree(selection);
+      Node crunched = cruncher.makeCrunch(topology);
+
+      cruncher.setFailed(crunched.getAllLeafNodes().get(863), true);
+      topology.getAllLeafNodes().get(863).setFailed(true);
+      assertSameTree(cruncher.makeCrunch(topology), crunched);
+
+      cruncher.reweight(crunched.getAllLeafNodes().get(0), 300);
+      topology.getAllLeafNodes().get(0).setWeight(300);
+      assertSameTree(cruncher.makeCrunch(topology), crunched);
+
+      cruncher.removeNode(crunched.getChildren().get(0).getChildren().get(1).getChildren().get(2));
+      topology.getChildren().get(0).getChildren().get(1).getChildren().remove(2);
+      assertSameTree(cruncher.makeCrunch(topology), crunched);
+
+      Node rack = crunched.getChildren().get(1).getChildren().get(2);
+      Node sn = cruncher.addNode(rack, TestUtils.createStorageNode("dc2rack3sn7", selection));
+      assertEquals(rack, sn.getParent());
+      assertEquals(rack, sn.getChildren().get(0).findParent(StorageSystemTypes.RACK));
+      rack = topology.getChildren().get(1).getChildren().get(2);
+      Node topologicalSn = TestUtils.createStorageNode("dc2rack3sn7", selection);
+      topologicalSn.setParent(rack);
+      rack.getChildren().add(topologicalSn);
+      assertSameTree(cruncher.makeCrunch(topology), crunched);
+    }
+  }
+
+  /**
+   * A delta that a UNIFORM or JUMP bucket on its path cannot take must be rejected, and leave the
+   * tree as it was, with the weights and selectors along the path intact.
+   */
+  @Test
+  public void testRejectedIncrementalRecrunch() throws MappingException {
+    for (Selection selection: new Selection[] {Selection.UNIFORM, Selection.JUMP}) {
+      Crunch cruncher = new Crunch();
+      Node topology = TestUtils.createLargeTree(selection);
+      Node crunched = cruncher.makeCrunch(topology);
+      try {
+        cruncher.reweight(crunched.getAllLeafNodes().get(0), 300);
+        fail("a disk was reweighted in a " + selection + " bucket");
+      } catch (IllegalArgumentException expected) {
+      }
+      assertSameTree(cruncher.makeCrunch(topology), crunched);
+      try {
+        // fits the rack, but makes it heavier than the other racks of the data center
+        cruncher.addNode(crunched.getChildren().get(0).getChildren().get(0),
+            TestUtils.createStorageNode("dc1rack1sn7", selection));
+        fail("a storage node was added under a " + selection + " bucket");
+      } catch (IllegalArgumentException expected) {
+      }
+      assertSameTree(cruncher.makeCrunch(topology), crunched);
+      try {
+        Node rack = crunched.getChildren().get(0).getChildren().get(0);
+        cruncher.removeNode(rack.getChildren().get(0));
+        fail("a storage node was removed under a " + selection + " bucket");
+      } catch (IllegalArgumentException expected) {
+      }
+      assertSameTree(cruncher.makeCrunch(topology), crunched);
+    }
+  }
+
+  /**
+   * A type change after an incremental update must reach the ancestor tables the update built.
+   */
+  @Test
+  public void testAncestorsAfterIncrementalUpdate() {
+    Crunch cruncher = new Crunch();
+    Node crunched = cruncher.makeCrunch(TestUtils.createLargeTree());
+    Node rack = crunched.getChildren().get(0).getChildren().get(0);
+    rack.setType(StorageSystemTypes.DISK + 1);
+    Node sn = cruncher.addNode(rack, TestUtils.createStorageNode("dc1rack1sn7", Selection.STRAW));
+    assertEquals(rack, sn.getChildren().get(0).findParent(StorageSystemTypes.DISK + 1));
+    rack.setType(StorageSystemTypes.RACK);
+    assertEquals(rack, sn.getChildren().get(0).findParent(StorageSystemTypes.RACK));
+    assertNull(sn.getChildren().get(0).findParent(StorageSystemTypes.DISK + 1));
+  }
+
+  @Test
+  public void testParallelCrunch() throws MappingException {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (Selection selection: new Selection[] {Selection.STRAW, Selection.CONSISTENT_HASHING}) {
+        Node topology = TestUtils.createLargeTree(selection);
+        Node expected = new Crunch().makeCrunch(topology);
+        // split down to the storage nodes, to the racks, and not at all
+        for (int threshold: new int[] {12, 100, 1000}) {
+          Crunch cruncher = new Crunch();
+          cruncher.setExecutor(executor);
+          cruncher.setParallelThreshold(threshold);
+          Node crunched = cruncher.makeCrunch(topology);
+          assertSameTree(expected, crunched);
+          for (Node leaf: crunched.getAllLeafNodes()) {
+            assertEquals(crunched, leaf.findParent(Types.ROOT));
+          }
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testIdCollisions() {
+    Node topology = TestUtils.createLargeTree();
+    assertTrue(Crunch.findIdCollisions(new Crunch().makeCrunch(topology)).isEmpty());
+
+    // find two disk names whose 32-bit ids collide, and put them into the tree
+    Crunch cruncher = new Crunch();
+    Map<Long,String> names = new HashMap<Long,String>();
+    String[] colliding = null;
+    for (int i = 0; colliding == null; i++) {
+      Node disk = new Node();
+      disk.setName("hd" + i);
+      long id = cruncher.makeCrunchNode(disk).getId();
+      if (names.containsKey(id)) {
+        colliding = new String[] {names.get(id), disk.getName()};
+      }
+      names.put(id, disk.getName());
+    }
+    List<Node> disks = topology.getAllLeafNodes();
+    disks.get(3).setName(colliding[0]);
+    disks.get(500).setName(colliding[1]);
+
+    Node crunched = cruncher.makeCrunch(topology);
+    Map<Long,List<Node>> collisions = Crunch.findIdCollisions(crunched);
+    assertEquals(1, collisions.size());
+    List<Node> nodes = collisions.values().iterator().next();
+    assertEquals(Arrays.asList(crunched.findNode(colliding[0]), crunched.findNode(colliding[1])),
+        nodes);
+    // the id lookup returns the first one
+    assertEquals(nodes.get(0), crunched.findNodeById(nodes.get(0).getId()));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testRemoveRoot() {
+    Node crunched = new Crunch().makeCrunch(TestUtils.createSimpleTree());
+    new Crunch().removeNode(crunched);
+  }
+
+  private static void assertSameTree(Node expected, Node actual) throws MappingException {
+    assertSameNode(expected, actual);
+    PlacementAlgorithm pa = new CRUSHPlacementAlgorithm();
+    for (long input = 0; input < 2000; input++) {
+      assertEquals(pa.select(expected, input, 3, StorageSystemTypes.DISK),
+          pa.select(actual, input, 3, StorageSystemTypes.DISK));
+    }
+  }
+
+  private static void assertSameNode(Node expected, Node actual) {
+    assertEquals(expected.getName(), actual.getName());
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getWeight(), actual.getWeight());
+    assertEquals(expected.isFailed(), actual.isFailed());
+    assertEquals(expected.getAllLeafNodes(), actual.getAllLeafNodes());
+    assertEquals(expected.isLeaf(), actual.isLeaf());
+    if (!expected.isLeaf()) {
+      assertNotNull(actual.getIndex());
+      assertEquals(expected.getChildren().size(), actual.getChildren().size());
+      for (int i = 0; i < expected.getChildren().size(); i++) {
+        assertSameNode(expected.getChildren().get(i), actual.getChildren().get(i));
+      }
+    }
+  }
 }
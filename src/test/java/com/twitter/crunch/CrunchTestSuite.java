@@ -21,6 +21,7 @@ import org.junit.runners.Suite.SuiteClasses;
 
 import com.twitter.crunch.integrated.RDFBalanceTest;
 import com.twitter.crunch.integrated.RDFStabilityTest;
+import com.twitter.crunch.integrated.ReweightStabilityTest;
 
 /**
  * Test suite that exercises all crunch tests.
@@ -29,13 +30,27 @@ import com.twitter.crunch.integrated.RDFStabilityTest;
 @SuiteClasses({
   NodeTest.class,
   MessageDigestHashTest.class,
+  JenkinsHashTest.class,
+  LongIntMapTest.class,
   MappingDiffTest.class,
   StrawSelectionTest.class,
+  Straw2SelectionTest.class,
+  UniformSelectionTest.class,
+  ListSelectionTest.class,
+  TreeSelectionTest.class,
+  JumpSelectionTest.class,
+  MaglevSelectionTest.class,
+  CRUSHPlacementAlgorithmTest.class,
+  CompactTopologyTest.class,
+  TopologySnapshotTest.class,
+  PersistentNameMapTest.class,
+  PlacementEngineTest.class,
   ConsistentHashingSelectionTest.class,
   RandomSelectionTest.class,
   CrunchTest.class,
   AssignmentTrackerImplTest.class,
   RDFBalanceTest.class,
-  RDFStabilityTest.class
+  RDFStabilityTest.class,
+  ReweightStabilityTest.class
 })
 public class CrunchTestSuite {}
\ No newline at end of file
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the per-child scalar hash, the scalar batch loop, and the lane-blocked batch backend
+ * across bucket widths. This is not part of the test suite; run it explicitly with
+ * <code>mvn test -Dtest=JenkinsHashBenchmark</code>.
+ */
+public class JenkinsHashBenchmark {
+  private static final int[] WIDTHS = {8, 16, 32, 64, 128, 256, 512, 1024};
+  // number of hashes per measurement
+  private static final int HASHES = 1 << 22;
+  private static final int WARMUP = 3;
+  private static final int RUNS = 5;
+
+  private long sink;
+
+  @Test
+  public void benchmark() {
+    System.out.println("width\tscalar (ns/hash)\tbatch\tlanes8\tlanes16");
+    JenkinsHash scalar = new JenkinsHash(0);
+    JenkinsHash lanes8 = new JenkinsHash(8);
+    JenkinsHash lanes16 = new JenkinsHash(16);
+    for (int width: WIDTHS) {
+      long[] ids = createIds(width);
+      long[] result = new long[width];
+      System.out.println(String.format("%d\t%.2f\t%.2f\t%.2f\t%.2f", width,
+          measureScalar(scalar, ids), measureBatch(scalar, ids, result),
+          measureBatch(lanes8, ids, result), measureBatch(lanes16, ids, result)));
+    }
+    System.out.println("(sink: " + sink + ")");
+  }
+
+  private long[] createIds(int width) {
+    Random rng = new Random(width);
+    long[] ids = new long[width];
+    for (int i = 0; i < width; i++) {
+      ids[i] = rng.nextInt() & 0xFFFFFFFFL;
+    }
+    return ids;
+  }
+
+  private double measureScalar(MultiInputHash hash, long[] ids) {
+    final int iterations = HASHES/ids.length;
+    double best = Double.MAX_VALUE;
+    for (int run = 0; run < WARMUP + RUNS; run++) {
+      long begin = System.nanoTime();
+      long sum = 0;
+      for (int i = 0; i < iterations; i++) {
+        for (long id: ids) {
+          sum += hash.hash(i, id, 1);
+        }
+      }
+      long end = System.nanoTime();
+      sink += sum;
+      if (run >= WARMUP) {
+        best = Math.min(best, ((double)(end - begin))/HASHES);
+      }
+    }
+    return best;
+  }
+
+  private double measureBatch(BatchMultiInputHash hash, long[] ids, long[] result) {
+    final int iterations = HASHES/ids.length;
+    double best = Double.MAX_VALUE;
+    for (int run = 0; run < WARMUP + RUNS; run++) {
+      long begin = System.nanoTime();
+      long sum = 0;
+      for (int i = 0; i < iterations; i++) {
+        hash.hash(i, ids, 1, result);
+        sum += result[i%ids.length];
+      }
+      long end = System.nanoTime();
+      sink += sum;
+      if (run >= WARMUP) {
+        best = Math.min(best, ((double)(end - begin))/HASHES);
+      }
+    }
+    return best;
+  }
+}
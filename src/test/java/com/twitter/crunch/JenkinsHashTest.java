@@ -0,0 +1,131 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class JenkinsHashTest {
+  private static final int TRIES = 1000000;
+  private static final long[] EDGE_VALUES = {
+    0L, 1L, -1L, 0x7FFFFFFFL, 0x80000000L, 0xFFFFFFFFL, 0x100000000L, Long.MAX_VALUE, Long.MIN_VALUE
+  };
+
+  private final MultiInputHash expected = new LegacyJenkinsHash();
+  private final JenkinsHash actual = new JenkinsHash();
+
+  @Test
+  public void testEdgeValues() {
+    for (long a: EDGE_VALUES) {
+      assertEquals(expected.hash(a), actual.hash(a));
+      for (long b: EDGE_VALUES) {
+        assertEquals(expected.hash(a, b), actual.hash(a, b));
+        for (long c: EDGE_VALUES) {
+          assertEquals(expected.hash(a, b, c), actual.hash(a, b, c));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRandomInputs() {
+    Random rng = new Random(42);
+    for (int i = 0; i < TRIES; i++) {
+      long a = rng.nextLong();
+      long b = rng.nextLong();
+      long c = rng.nextLong();
+      assertEquals(expected.hash(a), actual.hash(a));
+      assertEquals(expected.hash(a, b), actual.hash(a, b));
+      assertEquals(expected.hash(a, b, c), actual.hash(a, b, c));
+    }
+  }
+
+  /**
+   * Exercises the shape of the inputs that the selectors actually use: 32-bit data values and node
+   * ids with small round values.
+   */
+  @Test
+  public void testSelectionInputs() {
+    Random rng = new Random(1315423911L);
+    for (int i = 0; i < TRIES; i++) {
+      long input = rng.nextInt() & 0xFFFFFFFFL;
+      long id = rng.nextInt() & 0xFFFFFFFFL;
+      long round = rng.nextInt(64);
+      assertEquals(expected.hash(input, id, round), actual.hash(input, id, round));
+    }
+  }
+
+  @Test
+  public void testBatchHash() {
+    doTestBatchHash(actual);
+  }
+
+  @Test
+  public void testLaneBatchHash() {
+    doTestBatchHash(new JenkinsHash(8));
+    doTestBatchHash(new JenkinsHash(16));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testInvalidLanes() {
+    new JenkinsHash(4);
+  }
+
+  /**
+   * A hash function without the batch method must be hashed one id at a time.
+   */
+  @Test
+  public void testScalarFallback() {
+    long[] ids = {1L, 42L, 0xFFFFFFFFL};
+    long[] result = new long[ids.length];
+    StrawSelector.hashAll(expected, 7L, ids, 3L, result);
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals(expected.hash(7L, ids[i], 3L), result[i]);
+    }
+  }
+
+  /**
+   * An invalid lanes property must fall back to the scalar loop instead of failing every hash.
+   */
+  @Test
+  public void testInvalidLanesProperty() {
+    assertEquals(0, JenkinsHash.checkLanes(4));
+    assertEquals(0, JenkinsHash.checkLanes(-8));
+    assertEquals(16, JenkinsHash.checkLanes(16));
+    assertEquals(0, JenkinsHash.checkLanes(0));
+  }
+
+  private void doTestBatchHash(BatchMultiInputHash actual) {
+    Random rng = new Random(7);
+    for (int size = 0; size <= 1024; size = size*2 + 1) {
+      long[] ids = new long[size];
+      for (int i = 0; i < size; i++) {
+        ids[i] = rng.nextLong();
+      }
+      long[] result = new long[size + 3]; // larger buffers are allowed
+      for (int round = 0; round < 8; round++) {
+        long input = rng.nextLong();
+        actual.hash(input, ids, round, result);
+        for (int i = 0; i < size; i++) {
+          assertEquals(expected.hash(input, ids[i], round), result[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class JumpSelectionTest extends BaseSelectionTest {
+  private final Class<? extends Selector> cls = JumpSelector.class;
+
+  /**
+   * The basic tree has children of different weights, which the jump selection rejects.
+   */
+  @Test(expected=IllegalArgumentException.class)
+  public void testUnequalWeights() {
+    doTestBasic(cls);
+  }
+
+  @Test
+  public void testLargeTree() {
+    doTestLargeTree(cls);
+  }
+
+  /**
+   * Removing the first child shifts all the others, so most of the data moves.
+   */
+  @Test
+  public void testStabilityOnRemoval() {
+    assertTrue(doTestStability(cls, true) > 50);
+  }
+
+  @Test
+  public void testStabilityOnAddition() {
+    // only the data that goes to the new node should move
+    assertTrue(doTestStability(cls, false) < 0.5);
+  }
+
+  /**
+   * Growing from n to n + 1 buckets either keeps a key where it was or moves it to the new bucket.
+   */
+  @Test
+  public void testJumpOnlyMovesToNewBucket() {
+    Random rng = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      long key = rng.nextInt() & 0xFFFFFFFFL;
+      int previous = 0;
+      for (int buckets = 1; buckets <= 300; buckets++) {
+        int bucket = JumpSelector.jump(key, buckets);
+        assertTrue(bucket >= 0 && bucket < buckets);
+        assertTrue(bucket == previous || bucket == buckets - 1);
+        previous = bucket;
+      }
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongIntMapTest {
+  /**
+   * The map must agree with a HashMap through growth, overwrites and clears.
+   */
+  @Test
+  public void testAgainstHashMap() {
+    Random random = new Random(17);
+    LongIntMap map = new LongIntMap();
+    Map<Long,Integer> expected = new HashMap<Long,Integer>();
+    for (int run = 0; run < 3; run++) {
+      for (int i = 0; i < 20000; i++) {
+        // a narrow key range for overwrites, and the extreme keys
+        long key = i % 7 == 0 ? Long.MIN_VALUE + i : random.nextInt(5000) - 2500L;
+        int value = random.nextInt();
+        map.put(key, value);
+        expected.put(key, value);
+      }
+      assertEquals(expected.size(), map.size());
+      for (Map.Entry<Long,Integer> entry: expected.entrySet()) {
+        assertEquals(entry.getValue().intValue(), map.get(entry.getKey(), -1));
+      }
+      assertEquals(-1, map.get(2500L, -1));
+      map.clear();
+      expected.clear();
+      assertEquals(0, map.size());
+      assertEquals(-1, map.get(0L, -1));
+    }
+  }
+}
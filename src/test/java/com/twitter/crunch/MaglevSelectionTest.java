@@ -0,0 +1,83 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MaglevSelectionTest extends BaseSelectionTest {
+  private final Class<? extends Selector> cls = MaglevSelector.class;
+
+  @Test
+  public void testBasic() {
+    doTestBasic(cls);
+  }
+
+  @Test
+  public void testBalance() {
+    doTestBalance(cls, 1000);
+  }
+
+  @Test
+  public void testLargeTree() {
+    doTestLargeTree(cls);
+  }
+
+  /**
+   * The default table keeps its size when a node is removed or added, so only a small multiple of
+   * the optimal 0.1% should move.
+   */
+  @Test
+  public void testStabilityOnRemoval() {
+    assertTrue(doTestStability(cls, true) < 1);
+  }
+
+  @Test
+  public void testStabilityOnAddition() {
+    assertTrue(doTestStability(cls, false) < 1);
+  }
+
+  /**
+   * The table shares should follow the weights more closely as the table grows.
+   */
+  @Test
+  public void testWeightDeviation() {
+    Node rack = createRack(64, new Random(42));
+    double previous = Double.MAX_VALUE;
+    for (int tableSize: new int[] {641, 6421, 64217}) {
+      double deviation = new MaglevSelector(rack, tableSize).getMaxWeightDeviation();
+      System.out.println("table size " + tableSize + ": maximum relative weight deviation (%): " +
+          deviation*100);
+      assertTrue(deviation < previous);
+      previous = deviation;
+    }
+    // the default table
+    assertTrue(new MaglevSelector(rack).getMaxWeightDeviation() < 0.05);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testTableSizeNotPrime() {
+    new MaglevSelector(createRack(8, new Random(42)), 1000);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testTableSizeTooSmall() {
+    new MaglevSelector(createRack(8, new Random(42)), 7);
+  }
+}
@@ -15,6 +15,15 @@
 
 package com.twitter.crunch;
 
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.junit.Test;
 
 public class MessageDigestHashTest {
@@ -31,4 +40,38 @@ public class MessageDigestHashTest {
     System.out.println(val);
   }
 
+  /**
+   * One instance hashed from several threads at once must return what it returns on one thread.
+   */
+  @Test
+  public void testConcurrentHash() throws Exception {
+    final MultiInputHash hf = new MessageDigestHash("SHA-1");
+    final int size = 20000;
+    final long[] expected = new long[size];
+    for (int i = 0; i < size; i++) {
+      expected[i] = hf.hash(i, i*31L, 1);
+    }
+
+    final int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(new Callable<long[]>() {
+          public long[] call() {
+            long[] actual = new long[size];
+            for (int i = 0; i < size; i++) {
+              actual[i] = hf.hash(i, i*31L, 1);
+            }
+            return actual;
+          }
+        }));
+      }
+      for (Future<long[]> future: futures) {
+        assertArrayEquals(expected, future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
 }
@@ -16,9 +16,13 @@
 package com.twitter.crunch;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -134,4 +138,184 @@ public class NodeTest {
     Node ret = hd.getRoot();
     assertSame(root, ret);
   }
+
+  /**
+   * The index built by the crunch must answer exactly as walking the tree does.
+   */
+  @Test
+  public void testIndexMatchesTreeWalk() {
+    Node topology = TestUtils.createLargeTree();
+    Node crunch = new Crunch().makeCrunch(topology);
+    assertNotNull(crunch.getIndex());
+    assertSameQueries(topology, crunch);
+  }
+
+  /**
+   * The views of a crunched tree are built once, and handed out without a copy, so they must not be
+   * modifiable. The plain queries return new lists the caller may modify, on any tree.
+   */
+  @Test
+  public void testCachedQueries() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    assertSame(crunch.getLeafView(), crunch.getLeafView());
+    assertSame(crunch.findChildrenView(StorageSystemTypes.RACK),
+        crunch.findChildrenView(StorageSystemTypes.RACK));
+    try {
+      crunch.getLeafView().remove(0);
+      fail("the leaves were modified");
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      crunch.findChildrenView(StorageSystemTypes.RACK).clear();
+      fail("the racks were modified");
+    } catch (UnsupportedOperationException expected) {
+    }
+    // the plain queries return new lists on crunched trees and topologies alike
+    for (Node node: new Node[] {crunch, TestUtils.createLargeTree()}) {
+      assertEquals(node.getLeafView(), node.getAllLeafNodes());
+      assertEquals(node.findChildrenView(StorageSystemTypes.RACK),
+          node.findChildren(StorageSystemTypes.RACK));
+      assertNotSame(node.getAllLeafNodes(), node.getAllLeafNodes());
+      node.getAllLeafNodes().remove(0);
+      node.findChildren(StorageSystemTypes.RACK).clear();
+      assertEquals(864, node.getLeafView().size());
+    }
+  }
+
+  private void assertSameQueries(Node expected, Node actual) {
+    assertEquals(expected.getAllLeafNodes(), actual.getAllLeafNodes());
+    for (int type = Types.ROOT; type <= StorageSystemTypes.DISK; type++) {
+      assertEquals(expected.findChildren(type), actual.findChildren(type));
+      assertEquals(expected.getChildrenCount(type), actual.getChildrenCount(type));
+    }
+    if (!expected.isLeaf()) {
+      for (int i = 0; i < expected.getChildren().size(); i++) {
+        assertSameQueries(expected.getChildren().get(i), actual.getChildren().get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidateIndex() {
+    Crunch cruncher = new Crunch();
+    Node root = cruncher.makeCrunch(TestUtils.createSimpleTree());
+    Node rack = root.findChildren(StorageSystemTypes.RACK).get(0);
+    // modify the list in place: the index has to be invalidated explicitly
+    rack.getChildren().remove(0);
+    rack.invalidateIndex();
+    assertNull(rack.getIndex());
+    assertNull(root.getIndex());
+    assertEquals(7, root.getAllLeafNodes().size());
+    assertEquals(7, root.getChildrenCount(StorageSystemTypes.DISK));
+
+    // recrunching rebuilds the index below, and that of the ancestors
+    cruncher.recrunch(rack.getParent());
+    assertNotNull(rack.getIndex());
+    assertNotNull(root.getIndex());
+    assertEquals(3, rack.getParent().getAllLeafNodes().size());
+    assertEquals(7, root.findChildren(StorageSystemTypes.DISK).size());
+  }
+
+  @Test
+  public void testSetChildrenInvalidatesIndex() {
+    Node root = new Crunch().makeCrunch(TestUtils.createSimpleTree());
+    Node rack = root.findChildren(StorageSystemTypes.RACK).get(0);
+    rack.setChildren(new ArrayList<Node>(rack.getChildren().subList(0, 1)));
+    assertEquals(7, root.getChildrenCount(StorageSystemTypes.DISK));
+  }
+
+  @Test
+  public void testAncestorTable() {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    for (Node leaf: crunch.getAllLeafNodes()) {
+      assertNotNull(leaf.getAncestors());
+      for (Node node = leaf; node != null; node = node.getParent()) {
+        for (int type = -1; type <= StorageSystemTypes.DISK + 1; type++) {
+          assertSame(walkToParent(node, type), node.findParent(type));
+        }
+      }
+    }
+  }
+
+  private static Node walkToParent(Node node, int type) {
+    while (node != null && node.getType() != type) {
+      node = node.getParent();
+    }
+    return node;
+  }
+
+  @Test
+  public void testAncestorTableInvalidation() {
+    Crunch cruncher = new Crunch();
+    Node root = cruncher.makeCrunch(TestUtils.createSimpleTree());
+    List<Node> racks = root.findChildren(StorageSystemTypes.RACK);
+    Node rack = racks.get(0);
+    Node otherRack = racks.get(racks.size() - 1);
+    Node disk = rack.getChildren().get(0);
+
+    // moving the disk drops its table, and the lookup walks the new parent chain
+    rack.getChildren().remove(disk);
+    otherRack.getChildren().add(disk);
+    disk.setParent(otherRack);
+    assertNull(disk.getAncestors());
+    assertSame(otherRack, disk.findParent(StorageSystemTypes.RACK));
+
+    // changing the type of a node drops the tables of its whole subtree
+    Node sibling = rack.getChildren().get(0);
+    rack.setType(StorageSystemTypes.STORAGE_NODE);
+    assertNull(sibling.getAncestors());
+    assertNull(sibling.findParent(StorageSystemTypes.RACK));
+    assertSame(rack, sibling.findParent(StorageSystemTypes.STORAGE_NODE));
+
+    // recrunching builds the tables again
+    rack.setType(StorageSystemTypes.RACK);
+    cruncher.recrunch(rack.getParent());
+    cruncher.recrunch(otherRack);
+    assertNotNull(sibling.getAncestors());
+    assertNotNull(disk.getAncestors());
+    assertSame(rack, sibling.findParent(StorageSystemTypes.RACK));
+    assertSame(otherRack, disk.findParent(StorageSystemTypes.RACK));
+    assertSame(root, disk.findParent(Types.ROOT));
+  }
+
+  @Test
+  public void testSameAncestor() {
+    Node root = new Crunch().makeCrunch(TestUtils.createSimpleTree());
+    List<Node> racks = root.findChildren(StorageSystemTypes.RACK);
+    List<Node> disks = racks.get(0).getAllLeafNodes();
+    Node other = racks.get(1).getAllLeafNodes().get(0);
+    assertTrue(Node.sameAncestor(disks.get(0), disks.get(1), StorageSystemTypes.RACK));
+    assertFalse(Node.sameAncestor(disks.get(0), other, StorageSystemTypes.RACK));
+    assertTrue(Node.sameAncestor(disks.get(0), other, Types.ROOT));
+    // neither node has a parent of the type
+    assertFalse(Node.sameAncestor(racks.get(0), racks.get(1), StorageSystemTypes.DISK));
+    // racks whose ids collide are still different racks
+    racks.get(1).setId(racks.get(0).getId());
+    assertFalse(Node.sameAncestor(disks.get(0), other, StorageSystemTypes.RACK));
+  }
+
+  @Test
+  public void testFindNode() {
+    Node topology = TestUtils.createLargeTree();
+    Node root = new Crunch().makeCrunch(topology);
+    for (Node node: new Node[] {root, topology}) {
+      Node dc = node.getChildren().get(1);
+      Node disk = dc.getAllLeafNodes().get(17);
+      assertSame(disk, node.findNode(disk.getName()));
+      assertSame(disk, dc.findNode(disk.getName()));
+      assertSame(dc, dc.findNode(dc.getName()));
+      assertSame(disk, dc.findNodeById(disk.getId()));
+      assertNull(node.getChildren().get(0).findNode(disk.getName()));
+      assertNull(node.findNode("dc3"));
+    }
+
+    // the lookups follow changes to the tree
+    Node rack = root.getChildren().get(0).getChildren().get(0);
+    Node sn = rack.getChildren().remove(0);
+    rack.invalidateIndex();
+    assertNull(root.findNode(sn.getName()));
+    Node disk = root.getAllLeafNodes().get(0);
+    disk.setName("renamed");
+    assertSame(disk, root.findNode("renamed"));
+  }
 }
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PersistentNameMapTest {
+  /**
+   * The map must agree with a HashMap through puts and removes, including names whose hash codes
+   * collide, and the earlier versions must not change.
+   */
+  @Test
+  public void testAgainstHashMap() {
+    Random random = new Random(11);
+    PersistentNameMap<Integer> map = PersistentNameMap.empty();
+    Map<String,Integer> expected = new HashMap<String,Integer>();
+    List<PersistentNameMap<Integer>> versions = new ArrayList<PersistentNameMap<Integer>>();
+    List<Map<String,Integer>> expectedVersions = new ArrayList<Map<String,Integer>>();
+    for (int i = 0; i < 50000; i++) {
+      String name = name(random.nextInt(3000));
+      if (random.nextInt(3) == 0) {
+        map = map.remove(name);
+        expected.remove(name);
+      } else {
+        map = map.put(name, i);
+        expected.put(name, i);
+      }
+      assertEquals(expected.size(), map.size());
+      if (i % 5000 == 0) {
+        versions.add(map);
+        expectedVersions.add(new HashMap<String,Integer>(expected));
+      }
+    }
+    versions.add(map);
+    expectedVersions.add(expected);
+    for (int v = 0; v < versions.size(); v++) {
+      assertEquals(expectedVersions.get(v).size(), versions.get(v).size());
+      for (int i = 0; i < 3000; i++) {
+        assertEquals(expectedVersions.get(v).get(name(i)), versions.get(v).get(name(i)));
+      }
+    }
+    for (String name: expected.keySet()) {
+      map = map.remove(name);
+    }
+    assertEquals(0, map.size());
+    assertNull(map.get(name(0)));
+  }
+
+  /**
+   * Names whose hash codes agree on all but the top bits reach the last level of the trie, and
+   * names with equal hash codes collide there. Every put and remove must keep the map equal to a
+   * HashMap, collapse the emptied levels, and leave all earlier versions as they were.
+   */
+  @Test
+  public void testDeepTrie() {
+    List<String> names = new ArrayList<String>();
+    List<Integer> hashes = new ArrayList<Integer>();
+    hashes.add(0);
+    for (int bit = 0; bit < 32; bit++) {
+      hashes.add(1 << bit);
+    }
+    for (int top = 0; top < 4; top++) {
+      hashes.add((top << 30) | 0x3fffffff);
+    }
+    for (int hash: hashes) {
+      for (String prefix: new String[] {"x", "y", "z"}) {
+        names.add(name(prefix, hash));
+      }
+    }
+    Collections.shuffle(names, new Random(3));
+
+    PersistentNameMap<Integer> map = PersistentNameMap.empty();
+    Map<String,Integer> expected = new HashMap<String,Integer>();
+    List<PersistentNameMap<Integer>> versions = new ArrayList<PersistentNameMap<Integer>>();
+    List<Map<String,Integer>> expectedVersions = new ArrayList<Map<String,Integer>>();
+    for (int i = 0; i < names.size(); i++) {
+      map = map.put(names.get(i), i);
+      expected.put(names.get(i), i);
+      versions.add(map);
+      expectedVersions.add(new HashMap<String,Integer>(expected));
+      assertSameMap(expected, names, map);
+    }
+    // replace every value, then remove all names in another order
+    for (int i = 0; i < names.size(); i++) {
+      map = map.put(names.get(i), -i);
+      expected.put(names.get(i), -i);
+    }
+    assertSameMap(expected, names, map);
+    Collections.shuffle(names, new Random(5));
+    for (String name: names) {
+      map = map.remove(name);
+      expected.remove(name);
+      versions.add(map);
+      expectedVersions.add(new HashMap<String,Integer>(expected));
+      assertSameMap(expected, names, map);
+    }
+    assertEquals(0, map.size());
+    for (int v = 0; v < versions.size(); v++) {
+      assertSameMap(expectedVersions.get(v), names, versions.get(v));
+    }
+  }
+
+  /**
+   * Removing a name that is not in the map returns the map itself, also when the name collides
+   * with one that is.
+   */
+  @Test
+  public void testRemoveAbsent() {
+    PersistentNameMap<Integer> map = PersistentNameMap.<Integer>empty()
+        .put(name("x", 7), 1).put(name("y", 7), 2).put(name("x", 7 | 1 << 30), 3);
+    for (String absent: new String[] {name("z", 7), name("z", 7 | 1 << 30), name("z", 8)}) {
+      assertSame(map, map.remove(absent));
+    }
+    assertSame(PersistentNameMap.empty(), PersistentNameMap.empty().remove("x"));
+    assertEquals(3, map.size());
+  }
+
+  private static void assertSameMap(Map<String,Integer> expected, List<String> names,
+      PersistentNameMap<Integer> map) {
+    assertEquals(expected.size(), map.size());
+    for (String name: names) {
+      assertEquals(expected.get(name), map.get(name));
+    }
+  }
+
+  /**
+   * Returns a name that starts with the prefix and has the given hash code. The seven characters
+   * after the prefix are the digits of the rest of the hash code in base 31, which covers all 32
+   * bits.
+   */
+  private static String name(String prefix, int hash) {
+    int power = 1;
+    for (int i = 0; i < 7; i++) {
+      power *= 31;
+    }
+    long rest = (hash - prefix.hashCode()*power - "aaaaaaa".hashCode()) & 0xffffffffL;
+    char[] digits = new char[7];
+    for (int i = 6; i >= 0; i--) {
+      digits[i] = (char)('a' + rest % 31);
+      rest /= 31;
+    }
+    String name = prefix + new String(digits);
+    assertEquals(hash, name.hashCode());
+    return name;
+  }
+
+  /**
+   * Returns distinct names in which the pairs "Aa" and "BB", which have the same hash code, make
+   * many names collide.
+   */
+  private static String name(int i) {
+    StringBuilder name = new StringBuilder("n");
+    for (int bit = 0; bit < 4; bit++) {
+      name.append((i & (1 << bit)) == 0 ? "Aa" : "BB");
+    }
+    return name.append(i >> 4).toString();
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.twitter.crunch.Node.Selection;
+
+/**
+ * Compares the placement throughput of the CRUSH placement on the node tree and on the compact
+ * topology, and the heap allocated per placement by the list-based and the array-based CRUSH
+ * placement. This is not part of the test suite; run it explicitly with
+ * <code>mvn test -Dtest=PlacementBenchmark</code>.
+ */
+public class PlacementBenchmark {
+  // racks per data center for the measured topologies (with 2 data centers, 10 storage nodes per
+  // rack and 12 disks per storage node)
+  private static final int[] RACKS = {4, 40, 400};
+  private static final int PLACEMENTS = 1 << 12;
+  private static final int WARMUP = 3;
+  private static final int RUNS = 5;
+
+  private long sink;
+
+  @Test
+  public void benchmark() {
+    System.out.println("disks\tcrush (ns/placement)\tcompact\tcrush batch");
+    for (int racks: RACKS) {
+      Node crunch = new Crunch().makeCrunch(createTree(2, racks, 10, 12));
+      CRUSHPlacementAlgorithm crush = new CRUSHPlacementAlgorithm();
+      PlacementAlgorithm compact = new CompactPlacementAlgorithm(new CompactTopology(crunch));
+      System.out.println(String.format("%d\t%.1f\t%.1f\t%.1f", crunch.getChildrenCount(
+          StorageSystemTypes.DISK), measure(crush, crunch), measure(compact, crunch),
+          measureBatch(crush, crunch)));
+    }
+    System.out.println("(sink: " + sink + ")");
+  }
+
+  /**
+   * Measures the allocation rate with the per-thread allocation counter of HotSpot, which counts
+   * the bytes exactly and includes anything the JIT did not eliminate. The last column fails every
+   * tenth disk, so that the selections retry.
+   */
+  @Test
+  public void allocation() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      System.out.println("the allocation counter is not supported by this JVM");
+      return;
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+    System.out.println("disks\tlist (bytes/placement)\tarray\tarray with failures");
+    for (int racks: RACKS) {
+      Node crunch = new Crunch().makeCrunch(createTree(2, racks, 10, 12));
+      Node failed = new Crunch().makeCrunch(createTree(2, racks, 10, 12));
+      List<Node> disks = failed.getAllLeafNodes();
+      for (int i = 0; i < disks.size(); i += 10) {
+        disks.get(i).setFailed(true);
+      }
+      CRUSHPlacementAlgorithm pa = new CRUSHPlacementAlgorithm();
+      System.out.println(String.format("%d\t%.1f\t%.1f\t%.1f", crunch.getChildrenCount(
+          StorageSystemTypes.DISK), measureListAllocation(threads, pa, crunch),
+          measureArrayAllocation(threads, pa, crunch),
+          measureArrayAllocation(threads, pa, failed)));
+    }
+    System.out.println("(sink: " + sink + ")");
+  }
+
+  private double measureListAllocation(com.sun.management.ThreadMXBean threads,
+      PlacementAlgorithm pa, Node root) {
+    long thread = Thread.currentThread().getId();
+    double best = Double.MAX_VALUE;
+    for (int run = 0; run < WARMUP + RUNS; run++) {
+      long begin = threads.getThreadAllocatedBytes(thread);
+      long sum = 0;
+      for (int i = 0; i < PLACEMENTS; i++) {
+        sum += pa.select(root, i, 3, StorageSystemTypes.DISK).get(0).getId();
+      }
+      long end = threads.getThreadAllocatedBytes(thread);
+      sink += sum;
+      if (run >= WARMUP) {
+        best = Math.min(best, ((double)(end - begin))/PLACEMENTS);
+      }
+    }
+    return best;
+  }
+
+  private double measureArrayAllocation(com.sun.management.ThreadMXBean threads,
+      CRUSHPlacementAlgorithm pa, Node root) {
+    long thread = Thread.currentThread().getId();
+    Predicate<Node> predicate = Predicates.alwaysTrue();
+    Node[] selected = new Node[3];
+    double best = Double.MAX_VALUE;
+    for (int run = 0; run < WARMUP + RUNS; run++) {
+      long begin = threads.getThreadAllocatedBytes(thread);
+      long sum = 0;
+      for (int i = 0; i < PLACEMENTS; i++) {
+        pa.select(root, i, 3, StorageSystemTypes.DISK, predicate, selected);
+        sum += selected[0].getId();
+      }
+      long end = threads.getThreadAllocatedBytes(thread);
+      sink += sum;
+      if (run >= WARMUP) {
+        best = Math.min(best, ((double)(end - begin))/PLACEMENTS);
+      }
+    }
+    return best;
+  }
+
+  private double measureBatch(CRUSHPlacementAlgorithm pa, Node root) {
+    long[] inputs = new long[PLACEMENTS];
+    for (int i = 0; i < PLACEMENTS; i++) {
+      inputs[i] = i;
+    }
+    Node[] selected = new Node[PLACEMENTS*3];
+    int[] counts = new int[PLACEMENTS];
+    double best = Double.MAX_VALUE;
+    for (int run = 0; run < WARMUP + RUNS; run++) {
+      long begin = System.nanoTime();
+      pa.select(root, inputs, 3, StorageSystemTypes.DISK, selected, counts);
+      long end = System.nanoTime();
+      sink += selected[0].getId();
+      if (run >= WARMUP) {
+        best = Math.min(best, ((double)(end - begin))/PLACEMENTS);
+      }
+    }
+    return best;
+  }
+
+  private double measure(PlacementAlgorithm pa, Node root) {
+    double best = Double.MAX_VALUE;
+    for (int run = 0; run < WARMUP + RUNS; run++) {
+      long begin = System.nanoTime();
+      long sum = 0;
+      for (int i = 0; i < PLACEMENTS; i++) {
+        sum += pa.select(root, i, 3, StorageSystemTypes.DISK).get(0).getId();
+      }
+      long end = System.nanoTime();
+      sink += sum;
+      if (run >= WARMUP) {
+        best = Math.min(best, ((double)(end - begin))/PLACEMENTS);
+      }
+    }
+    return best;
+  }
+
+  static Node createTree(int dcCount, int rackCount, int snCount, int hdCount) {
+    Node root = createNode("root", Types.ROOT);
+    List<Node> dcs = new ArrayList<Node>();
+    for (int i = 1; i <= dcCount; i++) {
+      Node dc = createNode("dc" + i, Types.DATA_CENTER);
+      List<Node> racks = new ArrayList<Node>();
+      for (int j = 1; j <= rackCount; j++) {
+        Node rack = createNode(dc.getName() + "rack" + j, StorageSystemTypes.RACK);
+        List<Node> sns = new ArrayList<Node>();
+        for (int k = 1; k <= snCount; k++) {
+          Node sn = createNode(rack.getName() + "sn" + k, StorageSystemTypes.STORAGE_NODE);
+          List<Node> hds = new ArrayList<Node>();
+          for (int l = 1; l <= hdCount; l++) {
+            Node hd = createNode(sn.getName() + "hd" + l, StorageSystemTypes.DISK);
+            hd.setWeight(100);
+            hds.add(hd);
+          }
+          sn.setChildren(hds);
+          sns.add(sn);
+        }
+        rack.setChildren(sns);
+        racks.add(rack);
+      }
+      dc.setChildren(racks);
+      dcs.add(dc);
+    }
+    root.setChildren(dcs);
+    return root;
+  }
+
+  private static Node createNode(String name, int type) {
+    Node node = new Node();
+    node.setName(name);
+    node.setType(type);
+    node.setSelection(Selection.STRAW);
+    return node;
+  }
+}
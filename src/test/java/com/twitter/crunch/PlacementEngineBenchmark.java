@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Measures the lookup throughput of one placement engine shared by a growing number of threads.
+ * This is not part of the test suite; run it explicitly with
+ * <code>mvn test -Dtest=PlacementEngineBenchmark</code>.
+ */
+public class PlacementEngineBenchmark {
+  private static final int[] THREADS = {1, 2, 4, 8, 16};
+  // placements per thread per run
+  private static final int PLACEMENTS = 1 << 14;
+  private static final int WARMUP = 3;
+  private static final int RUNS = 5;
+
+  private long sink;
+
+  @Test
+  public void benchmark() throws Exception {
+    // 9600 disks
+    PlacementEngine engine = new PlacementEngine(new Crunch().makeSnapshot(
+        PlacementBenchmark.createTree(2, 40, 10, 12)));
+    System.out.println("threads\tthroughput (placements/ms)");
+    for (int threads: THREADS) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+        System.out.println(String.format("%d\t%.1f", threads, measure(executor, threads, engine)));
+      } finally {
+        executor.shutdown();
+      }
+    }
+    System.out.println("(sink: " + sink + ")");
+  }
+
+  private double measure(ExecutorService executor, int threads, final PlacementEngine engine)
+      throws Exception {
+    double best = 0;
+    for (int run = 0; run < WARMUP + RUNS; run++) {
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<Long>> futures = new ArrayList<Future<Long>>(threads);
+      for (int t = 0; t < threads; t++) {
+        final long first = (long)t*PLACEMENTS;
+        futures.add(executor.submit(new Callable<Long>() {
+          public Long call() throws InterruptedException {
+            Node[] selected = new Node[3];
+            long sum = 0;
+            start.await();
+            for (long input = first; input < first + PLACEMENTS; input++) {
+              engine.select(input, 3, StorageSystemTypes.DISK, selected);
+              sum += selected[0].getId();
+            }
+            return sum;
+          }
+        }));
+      }
+      long begin = System.nanoTime();
+      start.countDown();
+      for (Future<Long> future: futures) {
+        sink += future.get();
+      }
+      long end = System.nanoTime();
+      if (run >= WARMUP) {
+        best = Math.max(best, ((double)threads*PLACEMENTS)/((end - begin)/1000000.0));
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class PlacementEngineTest {
+  private static final int TRIES = 5000;
+
+  /**
+   * Threads sharing one engine must all get the placements of a single-threaded run, through both
+   * the list and the array methods.
+   */
+  @Test
+  public void testConcurrentLookups() throws Exception {
+    Node topology = TestUtils.createLargeTree();
+    topology.getAllLeafNodes().get(100).setFailed(true);
+    final PlacementEngine engine = new PlacementEngine(new Crunch().makeSnapshot(topology));
+    final List<List<Node>> expected = new ArrayList<List<Node>>(TRIES);
+    PlacementAlgorithm pa = new CRUSHPlacementAlgorithm();
+    Node root = new Crunch().makeCrunch(topology);
+    for (long input = 0; input < TRIES; input++) {
+      expected.add(pa.select(root, input, 3, StorageSystemTypes.DISK));
+    }
+
+    final int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int t = 0; t < threads; t++) {
+        final boolean useArray = t % 2 == 0;
+        futures.add(executor.submit(new Callable<Void>() {
+          public Void call() {
+            Node[] selected = new Node[3];
+            for (int input = 0; input < TRIES; input++) {
+              List<Node> nodes = expected.get(input);
+              if (useArray) {
+                assertEquals(nodes.size(), engine.select(input, 3, StorageSystemTypes.DISK,
+                    selected));
+                for (int i = 0; i < nodes.size(); i++) {
+                  assertEquals(nodes.get(i), selected[i]);
+                }
+              } else {
+                assertEquals(nodes, engine.select(input, 3, StorageSystemTypes.DISK));
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future: futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testSelectsFromSnapshot() {
+    TopologySnapshot snapshot = new Crunch().makeSnapshot(TestUtils.createSimpleTree());
+    PlacementEngine engine = new PlacementEngine(snapshot);
+    assertSame(snapshot, engine.getSnapshot());
+    for (Node node: engine.select(1, 2, StorageSystemTypes.RACK)) {
+      assertSame(node, snapshot.getNode(node.getName()));
+    }
+  }
+}
@@ -15,11 +15,27 @@
 
 package com.twitter.crunch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.Test;
 
 public class RandomSelectionTest extends BaseSelectionTest {
   private final Class<? extends Selector> cls = RandomSelector.class;
 
+  @Test
+  public void testBasic() {
+    doTestBasic(cls);
+  }
+
+  @Test
+  public void testBalance() {
+    doTestBalance(cls, 1000);
+  }
+
   @Test
   public void testLargeTree() {
     doTestLargeTree(cls);
@@ -34,4 +50,56 @@ public class RandomSelectionTest extends BaseSelectionTest {
   public void testStabilityOnAddition() {
     doTestStability(cls, false);
   }
+
+  /**
+   * With a power of two children, the share of every child must follow its weight, as the coin
+   * does not depend on the bits that pick the column.
+   */
+  @Test
+  public void testPowerOfTwoChildren() {
+    Node rack = new Node();
+    rack.setName("rack");
+    rack.setType(StorageSystemTypes.RACK);
+    List<Node> children = new ArrayList<Node>();
+    long totalWeight = 0;
+    for (int i = 1; i <= 8; i++) {
+      Node disk = new Node();
+      disk.setName("disk" + i);
+      disk.setType(StorageSystemTypes.DISK);
+      disk.setId(i);
+      disk.setWeight(i);
+      disk.setParent(rack);
+      children.add(disk);
+      totalWeight += i;
+    }
+    rack.setChildren(children);
+    RandomSelector selector = new RandomSelector(rack);
+    final int tries = 360000;
+    int[] counts = new int[children.size()];
+    for (long input = 0; input < tries; input++) {
+      counts[selector.selectIndex(input, 1)]++;
+    }
+    for (int i = 0; i < counts.length; i++) {
+      double expected = ((double)children.get(i).getWeight())*tries/totalWeight;
+      assertEquals(expected, counts[i], expected*0.03d);
+    }
+  }
+
+  /**
+   * The same input and round always select the same node, regardless of the order of the calls or
+   * of the selector instance.
+   */
+  @Test
+  public void testDeterministic() {
+    Node rack = new Crunch().makeCrunch(TestUtils.createSimpleTree()).getChildren().get(0);
+    Selector first = new RandomSelector(rack);
+    Selector second = new RandomSelector(rack);
+    for (long input = 1000; input > 0; input--) {
+      for (long round = 1; round <= 3; round++) {
+        Node selected = first.select(input, round);
+        assertSame(selected, first.select(input, round));
+        assertSame(selected, second.select(input, round));
+      }
+    }
+  }
 }
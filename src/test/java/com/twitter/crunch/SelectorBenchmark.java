@@ -0,0 +1,131 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Compares the selection throughput of the bucket types across bucket widths. This is not part of
+ * the test suite; run it explicitly with <code>mvn test -Dtest=SelectorBenchmark</code>.
+ */
+public class SelectorBenchmark {
+  private static final int[] WIDTHS = {8, 16, 32, 64, 128, 256, 512, 1024};
+  // number of child draws per measurement
+  private static final int DRAWS = 1 << 22;
+  private static final int WARMUP = 3;
+  private static final int RUNS = 5;
+
+  private long sink;
+
+  @Test
+  public void benchmark() {
+    System.out.println("width\tstraw (ns/select)\tstraw2\tuniform\tlist\ttree\t" +
+        "ch (sha-1)\tch (jenkins)\tjump\tmaglev");
+    for (int width: WIDTHS) {
+      Node bucket = createBucket(width, false);
+      // the uniform and jump selections need children of equal weight
+      Node equalBucket = createBucket(width, true);
+      System.out.println(String.format(
+          "%d\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f", width,
+          measure(new StrawSelector(bucket), width),
+          measure(new Straw2Selector(bucket), width),
+          measure(new UniformSelector(equalBucket), width),
+          measure(new ListSelector(bucket), width),
+          measure(new TreeSelector(bucket), width),
+          measure(new ConsistentHashingSelector(bucket), width),
+          measure(new ConsistentHashingSelector(bucket, new JenkinsHash()), width),
+          measure(new JumpSelector(equalBucket), width),
+          measure(new MaglevSelector(bucket), width)));
+    }
+    System.out.println("(sink: " + sink + ")");
+  }
+
+  /**
+   * Compares the cost of creating the selectors, which is paid for every bucket on every crunch.
+   */
+  @Test
+  public void benchmarkConstruction() {
+    System.out.println("width\tstraw (us/create)\tstraw2\tch\tjump\tmaglev");
+    for (int width: WIDTHS) {
+      Node equalBucket = createBucket(width, true);
+      System.out.println(String.format("%d\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f", width,
+          measureConstruction(StrawSelector.class, equalBucket),
+          measureConstruction(Straw2Selector.class, equalBucket),
+          measureConstruction(ConsistentHashingSelector.class, equalBucket),
+          measureConstruction(JumpSelector.class, equalBucket),
+          measureConstruction(MaglevSelector.class, equalBucket)));
+    }
+    System.out.println("(sink: " + sink + ")");
+  }
+
+  private Node createBucket(int width, boolean uniform) {
+    Node bucket = new Node();
+    bucket.setName("bucket");
+    List<Node> children = new ArrayList<Node>();
+    for (int i = 0; i < width; i++) {
+      Node child = new Node();
+      child.setName("child" + i);
+      child.setId(i + 1);
+      child.setWeight(uniform ? 100 : 50*(1 + i%4));
+      children.add(child);
+    }
+    bucket.setChildren(children);
+    return bucket;
+  }
+
+  private double measure(Selector selector, int width) {
+    final int selections = DRAWS/width;
+    double best = Double.MAX_VALUE;
+    for (int run = 0; run < WARMUP + RUNS; run++) {
+      long begin = System.nanoTime();
+      long sum = 0;
+      for (int i = 0; i < selections; i++) {
+        sum += selector.select(i, 1).getId();
+      }
+      long end = System.nanoTime();
+      sink += sum;
+      if (run >= WARMUP) {
+        best = Math.min(best, ((double)(end - begin))/selections);
+      }
+    }
+    return best;
+  }
+
+  private double measureConstruction(Class<? extends Selector> type, Node bucket) {
+    final int constructions = Math.max(1, DRAWS/500/bucket.getChildren().size());
+    double best = Double.MAX_VALUE;
+    try {
+      Constructor<? extends Selector> ctr = type.getConstructor(Node.class);
+      for (int run = 0; run < WARMUP + RUNS; run++) {
+        long begin = System.nanoTime();
+        for (int i = 0; i < constructions; i++) {
+          sink += ctr.newInstance(bucket).hashCode();
+        }
+        long end = System.nanoTime();
+        if (run >= WARMUP) {
+          best = Math.min(best, ((double)(end - begin))/constructions/1000);
+        }
+      }
+    } catch (Exception e) { // should not occur
+      throw new IllegalArgumentException(e);
+    }
+    return best;
+  }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class Straw2SelectionTest extends BaseSelectionTest {
+  private final Class<? extends Selector> cls = Straw2Selector.class;
+
+  @Test
+  public void testBasic() {
+    doTestBasic(cls);
+  }
+
+  @Test
+  public void testBalance() {
+    doTestBalance(cls, 1000);
+  }
+
+  @Test
+  public void testLargeTree() {
+    doTestLargeTree(cls);
+  }
+
+  @Test
+  public void testStabilityOnRemoval() {
+    doTestStability(cls, true);
+  }
+
+  @Test
+  public void testStabilityOnAddition() {
+    doTestStability(cls, false);
+  }
+
+  @Test
+  public void testCrushLn() {
+    assertEquals(0L, Straw2Selector.crushLn(0));
+    assertEquals(1L << 48, Straw2Selector.crushLn(0xffff));
+    long previous = -1;
+    for (int x = 0; x <= 0xffff; x++) {
+      long ln = Straw2Selector.crushLn(x);
+      assertTrue(ln >= previous);
+      // within a small fraction of 2^44*log2(x + 1)
+      double expected = Math.log(x + 1)/Math.log(2)*(1L << 44);
+      assertEquals(expected, ln, (1L << 44)*1e-4);
+      previous = ln;
+    }
+  }
+
+  @Test
+  public void testReweight() {
+    doTestReweight(cls, true);
+  }
+
+  @Test
+  public void testAppend() {
+    doTestAppend(cls);
+  }
+}
@@ -15,6 +15,12 @@
 
 package com.twitter.crunch;
 
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Test;
 
 public class StrawSelectionTest extends BaseSelectionTest {
@@ -44,4 +50,35 @@ public class StrawSelectionTest extends BaseSelectionTest {
   public void testStabilityOnAddition() {
     doTestStability(cls, false);
   }
+
+  /**
+   * The straw table must select exactly what the original map-based selector did, including how
+   * ties and zero weights are handled.
+   */
+  @Test
+  public void testMatchesLegacySelector() {
+    Random rng = new Random(42);
+    for (int size = 1; size <= 256; size *= 2) {
+      Node rack = new Node();
+      rack.setName("rack");
+      List<Node> children = new ArrayList<Node>();
+      for (int i = 0; i < size; i++) {
+        Node child = new Node();
+        child.setName("node" + i);
+        child.setId(rng.nextInt() & 0xFFFFFFFFL);
+        // a handful of distinct weights, so there are plenty of ties and some zero weights
+        child.setWeight(rng.nextInt(4)*50);
+        children.add(child);
+      }
+      rack.setChildren(children);
+
+      Selector expected = new LegacyStrawSelector(rack);
+      Selector actual = new StrawSelector(rack);
+      for (long input = 0; input < 2000; input++) {
+        for (long round = 1; round <= 3; round++) {
+          assertSame(expected.select(input, round), actual.select(input, round));
+        }
+      }
+    }
+  }
 }
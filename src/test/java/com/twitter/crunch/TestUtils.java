@@ -85,6 +85,14 @@ public class TestUtils {
    * 2 datacenters x 6 racks x 6 storage nodes x 12 hard disks = 864 hard disks
    */
   public static Node createLargeTree() {
+    return createLargeTree(Selection.STRAW);
+  }
+
+  /**
+   * 2 datacenters x 6 racks x 6 storage nodes x 12 hard disks = 864 hard disks, with all interior
+   * nodes using the given selection.
+   */
+  public static Node createLargeTree(Selection selection) {
     final int dcCount = 2;
     final int rackCount = 6;
     final int snCount = 6;
@@ -96,7 +104,7 @@ public class TestUtils {
     root.setName("root");
     root.setId(id++);
     root.setType(Types.ROOT);
-    root.setSelection(Selection.STRAW);
+    root.setSelection(selection);
     // DC
     List<Node> dcs = new ArrayList<Node>();
     for (int i = 1; i <= dcCount; i++) {
@@ -105,7 +113,7 @@ public class TestUtils {
       dc.setName("dc" + i);
       dc.setId(id++);
       dc.setType(Types.DATA_CENTER);
-      dc.setSelection(Selection.STRAW);
+      dc.setSelection(selection);
       dc.setParent(root);
       // racks
       List<Node> racks = new ArrayList<Node>();
@@ -115,7 +123,7 @@ public class TestUtils {
         rack.setName(dc.getName() + "rack" + j);
         rack.setId(id++);
         rack.setType(StorageSystemTypes.RACK);
-        rack.setSelection(Selection.STRAW);
+        rack.setSelection(selection);
         rack.setParent(dc);
         // storage nodes
         List<Node> sns = new ArrayList<Node>();
@@ -125,7 +133,7 @@ public class TestUtils {
           sn.setName(rack.getName() + "sn" + k);
           sn.setId(id++);
           sn.setType(StorageSystemTypes.STORAGE_NODE);
-          sn.setSelection(Selection.STRAW);
+          sn.setSelection(selection);
           sn.setParent(rack);
           // hds
           List<Node> hds = new ArrayList<Node>();
@@ -148,6 +156,27 @@ public class TestUtils {
     return root;
   }
 
+  /**
+   * A storage node with 6 hard disks, with the disks named after it, to add to a tree.
+   */
+  public static Node createStorageNode(String name, Selection selection) {
+    Node sn = new Node();
+    sn.setName(name);
+    sn.setType(StorageSystemTypes.STORAGE_NODE);
+    sn.setSelection(selection);
+    List<Node> hds = new ArrayList<Node>();
+    for (int i = 1; i <= 6; i++) {
+      Node hd = new Node();
+      hd.setName(name + "hd" + i);
+      hd.setType(StorageSystemTypes.DISK);
+      hd.setWeight(200);
+      hd.setParent(sn);
+      hds.add(hd);
+    }
+    sn.setChildren(hds);
+    return sn;
+  }
+
   public static List<Long> createData() {
     final int tries = 128*1024;
     List<Long> data = new ArrayList<Long>();
@@ -0,0 +1,334 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.twitter.crunch.Node.Selection;
+
+public class TopologySnapshotTest {
+  private static final int TRIES = 2000;
+
+  @Test
+  public void testFrozen() {
+    TopologySnapshot snapshot = new Crunch().makeSnapshot(TestUtils.createSimpleTree());
+    Node root = snapshot.getRoot();
+    Node disk = root.getAllLeafNodes().get(0);
+    assertTrue(root.isFrozen());
+    assertTrue(disk.isFrozen());
+    try {
+      disk.setFailed(true);
+      fail("a frozen node was modified");
+    } catch (UnsupportedOperationException expected) {}
+    try {
+      disk.setWeight(1);
+      fail("a frozen node was modified");
+    } catch (UnsupportedOperationException expected) {}
+    try {
+      snapshot.getParent(disk).getChildren().remove(disk);
+      fail("a frozen children list was modified");
+    } catch (UnsupportedOperationException expected) {}
+    // the original topology can still be crunched into a mutable tree
+    Node crunch = new Crunch().makeCrunch(root);
+    crunch.getAllLeafNodes().get(0).setFailed(true);
+  }
+
+  /**
+   * Every update must give the same tree as crunching the updated topology from scratch, and must
+   * leave the original snapshot alone.
+   */
+  @Test
+  public void testUpdatesMatchFullCrunch() throws MappingException {
+    for (Selection selection: new Selection[] {Selection.STRAW, Selection.STRAW2,
+        Selection.CONSISTENT_HASHING}) {
+      Crunch cruncher = new Crunch();
+      Node topology = TestUtils.createLargeTree(selection);
+      TopologySnapshot original = cruncher.makeSnapshot(topology);
+      long weight = original.getRoot().getWeight();
+
+      TopologySnapshot snapshot = original.withFailed("dc2rack6sn6hd12", true);
+      topology.getAllLeafNodes().get(863).setFailed(true);
+      assertSameTree(cruncher.makeCrunch(topology), snapshot);
+      // only the path was copied
+      assertSame(original.getRoot().getChildren().get(0), snapshot.getRoot().getChildren().get(0));
+      assertNotSame(original.getRoot().getChildren().get(1),
+          snapshot.getRoot().getChildren().get(1));
+
+      snapshot = snapshot.withWeight("dc1rack1sn1hd1", 300);
+      topology.getAllLeafNodes().get(0).setWeight(300);
+      assertSameTree(cruncher.makeCrunch(topology), snapshot);
+
+      snapshot = snapshot.withoutNode("dc1rack2sn3");
+      Node rack = topology.getChildren().get(0).getChildren().get(1);
+      rack.getChildren().remove(2);
+      assertSameTree(cruncher.makeCrunch(topology), snapshot);
+      assertNull(snapshot.getNode("dc1rack2sn3"));
+      assertNull(snapshot.getNode("dc1rack2sn3hd1"));
+
+      snapshot = snapshot.withNode("dc2rack3", TestUtils.createStorageNode("dc2rack3sn7", selection));
+      rack = topology.getChildren().get(1).getChildren().get(2);
+      Node sn = TestUtils.createStorageNode("dc2rack3sn7", selection);
+      sn.setParent(rack);
+      rack.getChildren().add(sn);
+      assertSameTree(cruncher.makeCrunch(topology), snapshot);
+      assertEquals("dc2rack3sn7hd4", snapshot.getNode("dc2rack3sn7hd4").getName());
+
+      // the original is untouched
+      assertEquals(weight, original.getRoot().getWeight());
+      assertEquals(864, original.getRoot().getAllLeafNodes().size());
+      assertEquals(false, original.getNode("dc2rack6sn6hd12").isFailed());
+      assertEquals(100, original.getNode("dc1rack1sn1hd1").getWeight());
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testDuplicateName() {
+    TopologySnapshot snapshot = new Crunch().makeSnapshot(TestUtils.createLargeTree());
+    snapshot.withNode("dc2rack3", TestUtils.createStorageNode("dc1rack1sn1", Selection.STRAW));
+  }
+
+  /**
+   * The names of a removed subtree must be gone from the derived snapshot only, and be free to be
+   * added again.
+   */
+  @Test
+  public void testRemovedNames() {
+    TopologySnapshot original = new Crunch().makeSnapshot(TestUtils.createLargeTree());
+    TopologySnapshot removed = original.withoutNode("dc1rack2sn3");
+    assertNull(removed.getNode("dc1rack2sn3"));
+    assertNull(removed.getNode("dc1rack2sn3hd4"));
+    assertSame(original.getNode("dc1rack2sn3hd4"), original.getRoot().findNode("dc1rack2sn3hd4"));
+    TopologySnapshot added = removed.withNode("dc2rack3",
+        TestUtils.createStorageNode("dc1rack2sn3", Selection.STRAW));
+    assertEquals("dc2rack3",
+        added.getParent(added.getParent(added.getNode("dc1rack2sn3hd1"))).getName());
+    // a node shared with an earlier snapshot is updated through its current path
+    TopologySnapshot failed = added.withFailed("dc2rack3sn1hd1", true);
+    assertTrue(failed.getNode("dc2rack3sn1hd1").isFailed());
+    assertSame(failed.getRoot().getChildren().get(1).getChildren().get(2).getChildren().get(0)
+        .getChildren().get(0), failed.getNode("dc2rack3sn1hd1"));
+  }
+
+  /**
+   * The ancestors of a node must be those of the snapshot asked, also for a node that is shared
+   * with earlier snapshots, and no node may reference a parent, which could be one of an earlier
+   * snapshot; the ancestor tables of the nodes must name the ancestors in every snapshot.
+   */
+  @Test
+  public void testAncestors() {
+    TopologySnapshot original = new Crunch().makeSnapshot(TestUtils.createLargeTree());
+    Node disk = original.getNode("dc1rack1sn1hd1");
+    // the sibling is updated, so the disk is shared while its ancestors are copied
+    TopologySnapshot updated = original.withWeight("dc1rack1sn1hd2", 300);
+    assertSame(disk, updated.getNode("dc1rack1sn1hd1"));
+    for (TopologySnapshot snapshot: new TopologySnapshot[] {original, updated}) {
+      Node sn = snapshot.getParent(disk);
+      assertSame(snapshot.getNode("dc1rack1sn1"), sn);
+      assertSame(snapshot.getNode("dc1rack1"), snapshot.findParent(disk, StorageSystemTypes.RACK));
+      assertSame(snapshot.getRoot(), snapshot.findParent(disk, Types.ROOT));
+      assertSame(disk, snapshot.findParent(disk, StorageSystemTypes.DISK));
+      assertNull(snapshot.getParent(snapshot.getRoot()));
+      assertNull(snapshot.findParent(sn, StorageSystemTypes.DISK));
+      assertAncestors(snapshot, snapshot.getRoot());
+    }
+    assertEquals(original.getNode("dc1rack1sn1").getWeight() + 200,
+        updated.getParent(disk).getWeight());
+    // a version of the node from another snapshot is resolved by its name
+    assertSame(updated.getNode("dc1rack1sn1"),
+        updated.getParent(original.getNode("dc1rack1sn1hd2")));
+
+    TopologySnapshot added = updated.withNode("dc1rack1",
+        TestUtils.createStorageNode("dc1rack1sn7", Selection.STRAW));
+    Node newDisk = added.getNode("dc1rack1sn7hd1");
+    assertSame(added.getNode("dc1rack1sn7"), added.getParent(newDisk));
+    assertSame(added.getNode("dc1rack1"), added.findParent(newDisk, StorageSystemTypes.RACK));
+    assertAncestors(added, added.getRoot());
+    TopologySnapshot removed = added.withoutNode("dc1rack1sn7");
+    try {
+      removed.getParent(newDisk);
+      fail("the parent of a removed node was found");
+    } catch (IllegalArgumentException expected) {}
+  }
+
+  private static void assertAncestors(TopologySnapshot snapshot, Node node) {
+    assertAncestor(snapshot, node);
+    if (!node.isLeaf()) {
+      for (Node child: node.getChildren()) {
+        assertAncestors(snapshot, child);
+      }
+    }
+  }
+
+  /**
+   * The nodes of a snapshot know no parent, and must throw rather than return one; their ancestor
+   * tables must name the ancestors the snapshot finds, and hold the node itself.
+   */
+  private static void assertAncestor(TopologySnapshot snapshot, Node node) {
+    try {
+      node.getParent();
+      fail("the parent of a snapshot node was returned");
+    } catch (UnsupportedOperationException expected) {}
+    assertSame(node, node.findParent(node.getType()));
+    for (int type = Types.ROOT; type <= StorageSystemTypes.DISK + 1; type++) {
+      Node expected = snapshot.findParent(node, type);
+      Node actual = node.findParent(type);
+      if (expected == null) {
+        assertNull(actual);
+      } else {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getId(), actual.getId());
+      }
+    }
+  }
+
+  /**
+   * The rack isolation rules select on a snapshot root as on a crunched tree, and judge the
+   * replicas by their racks as there, also after an update copied the racks.
+   */
+  @Test
+  public void testRackIsolation() throws MappingException {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    TopologySnapshot snapshot = new Crunch().makeSnapshot(TestUtils.createLargeTree());
+    PlacementRules rules = new RackIsolationPlacementRules();
+    PlacementAlgorithm pa = new CRUSHPlacementAlgorithm();
+    for (long input = 0; input < TRIES; input++) {
+      List<Node> expected = rules.select(crunch, input, 3, pa);
+      List<Node> disks = rules.select(snapshot.getRoot(), input, 3, pa);
+      assertEquals(expected, disks);
+      assertNotSame(snapshot.findParent(disks.get(0), StorageSystemTypes.RACK),
+          snapshot.findParent(disks.get(1), StorageSystemTypes.RACK));
+    }
+    Node disk = snapshot.getNode("dc1rack1sn1hd1");
+    assertFalse(rules.acceptReplica(crunch.findNode(disk.getName()),
+        crunch.findNode("dc1rack1sn1hd2")));
+    assertFalse(rules.acceptReplica(disk, snapshot.getNode("dc1rack1sn1hd2")));
+    assertTrue(rules.acceptReplica(disk, snapshot.getNode("dc1rack2sn1hd1")));
+    // the disk is shared, while the sibling and the rack are copies
+    TopologySnapshot updated = snapshot.withWeight("dc1rack1sn2hd1", 300);
+    assertSame(disk, updated.getNode(disk.getName()));
+    assertFalse(rules.acceptReplica(disk, updated.getNode("dc1rack1sn2hd1")));
+    assertTrue(rules.acceptReplica(disk, updated.getNode("dc1rack2sn1hd1")));
+  }
+
+  /**
+   * The assignment tracker, which counts the assignments of the ancestors of the selected disks,
+   * selects on a snapshot root as on a crunched tree.
+   */
+  @Test
+  public void testAssignmentTracking() throws MappingException {
+    Node crunch = new Crunch().makeCrunch(TestUtils.createLargeTree());
+    TopologySnapshot snapshot = new Crunch().makeSnapshot(TestUtils.createLargeTree());
+    PlacementAlgorithm expected = new CRUSHPlacementAlgorithm(
+        new AssignmentTrackerImpl(crunch, 3*TRIES, 0.1d));
+    PlacementAlgorithm actual = new CRUSHPlacementAlgorithm(
+        new AssignmentTrackerImpl(snapshot.getRoot(), 3*TRIES, 0.1d));
+    for (long input = 0; input < TRIES; input++) {
+      // once the racks are tracked, the disks count for their racks as well
+      assertEquals(expected.select(crunch, input, 2, StorageSystemTypes.RACK),
+          actual.select(snapshot.getRoot(), input, 2, StorageSystemTypes.RACK));
+      assertEquals(expected.select(crunch, input, 3, StorageSystemTypes.DISK),
+          actual.select(snapshot.getRoot(), input, 3, StorageSystemTypes.DISK));
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testUnknownName() {
+    TopologySnapshot snapshot = new Crunch().makeSnapshot(TestUtils.createSimpleTree());
+    snapshot.withFailed("dc3rack1hd1", true);
+  }
+
+  /**
+   * A snapshot shared by several threads must select what it selects on one thread, while other
+   * snapshots are derived from it.
+   */
+  @Test
+  public void testConcurrentSelection() throws Exception {
+    final TopologySnapshot snapshot = new Crunch().makeSnapshot(TestUtils.createLargeTree());
+    final List<List<Node>> expected = selectAll(snapshot.getRoot());
+
+    final int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<List<List<Node>>>> futures = new ArrayList<Future<List<List<Node>>>>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(new Callable<List<List<Node>>>() {
+          public List<List<Node>> call() throws MappingException {
+            return selectAll(snapshot.getRoot());
+          }
+        }));
+      }
+      TopologySnapshot derived = snapshot;
+      for (Node leaf: snapshot.getRoot().getAllLeafNodes().subList(0, 100)) {
+        derived = derived.withFailed(leaf.getName(), true);
+      }
+      for (Future<List<List<Node>>> future: futures) {
+        assertEquals(expected, future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static List<List<Node>> selectAll(Node root) throws MappingException {
+    PlacementAlgorithm pa = new CRUSHPlacementAlgorithm();
+    List<List<Node>> selections = new ArrayList<List<Node>>(TRIES);
+    for (long input = 0; input < TRIES; input++) {
+      selections.add(pa.select(root, input, 3, StorageSystemTypes.DISK));
+    }
+    return selections;
+  }
+
+  private static void assertSameTree(Node expected, TopologySnapshot snapshot)
+      throws MappingException {
+    assertSameNode(expected, snapshot.getRoot());
+    for (Node node: expected.findChildren(StorageSystemTypes.STORAGE_NODE)) {
+      assertSameNode(node, snapshot.getNode(node.getName()));
+    }
+    assertEquals(selectAll(expected), selectAll(snapshot.getRoot()));
+  }
+
+  private static void assertSameNode(Node expected, Node actual) {
+    assertEquals(expected.getName(), actual.getName());
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getWeight(), actual.getWeight());
+    assertEquals(expected.isFailed(), actual.isFailed());
+    assertTrue(actual.isFrozen());
+    assertEquals(expected.getAllLeafNodes(), actual.getAllLeafNodes());
+    assertEquals(expected.isLeaf(), actual.isLeaf());
+    if (!expected.isLeaf()) {
+      assertEquals(expected.getChildren().size(), actual.getChildren().size());
+      for (int i = 0; i < expected.getChildren().size(); i++) {
+        assertSameNode(expected.getChildren().get(i), actual.getChildren().get(i));
+      }
+    }
+  }
+}
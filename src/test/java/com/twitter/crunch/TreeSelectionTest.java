@@ -0,0 +1,61 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TreeSelectionTest extends BaseSelectionTest {
+  private final Class<? extends Selector> cls = TreeSelector.class;
+
+  @Test
+  public void testBasic() {
+    doTestBasic(cls);
+  }
+
+  @Test
+  public void testBalance() {
+    doTestBalance(cls, 1000);
+  }
+
+  @Test
+  public void testLargeTree() {
+    doTestLargeTree(cls);
+  }
+
+  @Test
+  public void testStabilityOnRemoval() {
+    doTestStability(cls, true);
+  }
+
+  @Test
+  public void testStabilityOnAddition() {
+    // only the data that goes to the new node should move
+    assertTrue(doTestStability(cls, false) < 0.5);
+  }
+
+  /**
+   * Reweighting a child also moves data between the subtrees along its path, so the movement is
+   * not optimal, but it should stay within a small multiple of the straw2 movement.
+   */
+  @Test
+  public void testReweight() {
+    int optimal = doTestReweight(Straw2Selector.class, true);
+    int moved = doTestReweight(cls, false);
+    assertTrue(moved < 4*optimal);
+  }
+}
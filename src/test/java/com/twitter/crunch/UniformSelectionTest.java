@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class UniformSelectionTest extends BaseSelectionTest {
+  private final Class<? extends Selector> cls = UniformSelector.class;
+
+  /**
+   * The basic tree has children of different weights, which the uniform selection rejects.
+   */
+  @Test(expected=IllegalArgumentException.class)
+  public void testUnequalWeights() {
+    doTestBasic(cls);
+  }
+
+  @Test
+  public void testLargeTree() {
+    doTestLargeTree(cls);
+  }
+
+  /**
+   * Successive rounds must walk through all children before repeating one.
+   */
+  @Test
+  public void testDistinctRounds() {
+    Node rack = new Node();
+    rack.setName("rack");
+    rack.setId(42);
+    List<Node> children = new ArrayList<Node>();
+    final int size = 37;
+    for (int i = 0; i < size; i++) {
+      Node child = new Node();
+      child.setName("node" + i);
+      child.setId(i);
+      child.setWeight(100);
+      children.add(child);
+    }
+    rack.setChildren(children);
+    Selector selector = new UniformSelector(rack);
+    for (long input = 0; input < 1000; input++) {
+      Set<Node> selected = new HashSet<Node>();
+      for (long round = 1; round <= size; round++) {
+        selected.add(selector.select(input, round));
+      }
+      assertEquals(size, selected.size());
+    }
+  }
+
+  /**
+   * Changing the number of children reshuffles most of the data; this is the price of the constant
+   * time selection.
+   */
+  @Test
+  public void testStabilityOnRemoval() {
+    assertTrue(doTestStability(cls, true) > 50);
+  }
+
+  @Test
+  public void testStabilityOnAddition() {
+    assertTrue(doTestStability(cls, false) > 50);
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2013 Twitter, Inc.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twitter.crunch.integrated;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.twitter.crunch.MappingDiff;
+import com.twitter.crunch.MappingDiff.Value;
+import com.twitter.crunch.MappingFunction;
+import com.twitter.crunch.Node;
+import com.twitter.crunch.Node.Selection;
+import com.twitter.crunch.RackIsolationPlacementRules;
+import com.twitter.crunch.SimpleCRUSHMapping;
+import com.twitter.crunch.TestUtils;
+
+/**
+ * Measures the data movement caused by reweighting a single disk. Ideally only data that moves to
+ * or from the reweighted disk should move; in particular, data should not be reshuffled among its
+ * siblings.
+ */
+public class ReweightStabilityTest {
+  @Test
+  public void testStrawVersusStraw2() {
+    int straw = doTestReweight(Selection.STRAW);
+    int straw2 = doTestReweight(Selection.STRAW2);
+    assertTrue("straw2 should reshuffle less data among siblings than straw", straw2 < straw);
+  }
+
+  /**
+   * Returns the number of data objects that moved from one sibling of the reweighted disk to
+   * another. None of them needed to move.
+   */
+  private int doTestReweight(Selection selection) {
+    System.out.println("reweighting one disk with " + selection);
+    Node topo = TestUtils.createLargeTree(selection);
+    // the straw flaw shows with heterogeneous weights: give the disks a mix of weights
+    List<Node> disks = topo.getAllLeafNodes();
+    for (int i = 0; i < disks.size(); i++) {
+      disks.get(i).setWeight(50*(1 + i%4));
+    }
+    final int rf = 2;
+    MappingFunction mappingFunction = new SimpleCRUSHMapping(rf, new RackIsolationPlacementRules());
+    List<Long> data = TestUtils.createData();
+
+    Map<Long,List<Node>> before = mappingFunction.computeMapping(data, topo);
+
+    Node reweighted = reweightOneNode(topo);
+    Map<Long,List<Node>> after = mappingFunction.computeMapping(data, topo);
+
+    Map<Long,List<Value<Node>>> diff = MappingDiff.calculateDiff(before, after);
+    int moves = 0;
+    int collateral = 0;
+    for (List<Value<Node>> values: diff.values()) {
+      moves += values.size();
+      // look for data that moved from one sibling of the reweighted disk to another
+      boolean removedFromSibling = false;
+      boolean addedToSibling = false;
+      for (Value<Node> v: values) {
+        Node node = v.get();
+        if (!node.equals(reweighted) && node.getParent().equals(reweighted.getParent())) {
+          switch (v.getDifferenceType()) {
+          case REMOVED:
+            removedFromSibling = true;
+            break;
+          case ADDED:
+            addedToSibling = true;
+            break;
+          default:
+            break;
+          }
+        }
+      }
+      if (removedFromSibling && addedToSibling) {
+        collateral++;
+      }
+    }
+    // moves are pairs of removal and addition
+    System.out.println("number of replicas that moved: " + moves/2);
+    System.out.println("data objects that moved between siblings of the reweighted disk: " +
+        collateral);
+    System.out.println("relative movement (%): " +
+        ((float)moves/2)*100/(data.size()*rf*topo.getChildren().size()));
+    return collateral;
+  }
+
+  /**
+   * Halves the weight of the last disk.
+   */
+  private Node reweightOneNode(Node topo) {
+    Node node = topo;
+    while (!node.isLeaf()) {
+      List<Node> children = node.getChildren();
+      node = children.get(children.size()-1);
+    }
+    node.setWeight(node.getWeight()/2);
+    System.out.println("reweighted " + node.getName() + " to " + node.getWeight());
+    return node;
+  }
+}